@@ -54,6 +54,34 @@ public class Bootstrap {
         });
     }
 
+    /**
+     * Indices used for lookups by hash or email and for following the change feed. Creating an index that
+     * already exists is a no-op, so this is safe to run on every start.
+     */
+    public static void createIndexes() {
+        Database.query(Database.access(), new IClause[]{
+            NATIVE.cypher("CREATE INDEX ON :entry(hash)")
+        });
+        Database.query(Database.access(), new IClause[]{
+            NATIVE.cypher("CREATE INDEX ON :facet(hash)")
+        });
+        Database.query(Database.access(), new IClause[]{
+            NATIVE.cypher("CREATE INDEX ON :tombstone(collection)")
+        });
+        Database.query(Database.access(), new IClause[]{
+            NATIVE.cypher("CREATE INDEX ON :tombstone(project)")
+        });
+        Database.query(Database.access(), new IClause[]{
+            NATIVE.cypher("CREATE INDEX ON :entry(seq)")
+        });
+        Database.query(Database.access(), new IClause[]{
+            NATIVE.cypher("CREATE INDEX ON :tombstone(seq)")
+        });
+        Database.query(Database.access(), new IClause[]{
+            NATIVE.cypher("CREATE INDEX ON :user(email)")
+        });
+    }
+
     public static void createMetadata(Metadata data) {
         Database.query(Database.access(), new IClause[]{
             CREATE.node().label("metadata")
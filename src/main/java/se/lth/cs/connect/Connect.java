@@ -7,17 +7,25 @@ import ro.pippo.core.PippoSettings;
 import ro.pippo.core.route.Route;
 import ro.pippo.core.route.RouteContext;
 import ro.pippo.core.route.Router;
+import se.lth.cs.connect.events.EventQueue;
 import se.lth.cs.connect.modules.Database;
 import se.lth.cs.connect.modules.MailClient;
 import se.lth.cs.connect.modules.Mailman;
+import se.lth.cs.connect.modules.ResponseCache;
+import se.lth.cs.connect.modules.SearchIndex;
 import se.lth.cs.connect.modules.TaxonomyDB;
 import se.lth.cs.connect.routes.Account;
 import se.lth.cs.connect.routes.Admin;
 import se.lth.cs.connect.routes.Collection;
 import se.lth.cs.connect.routes.Entry;
 import se.lth.cs.connect.routes.Project;
+import se.lth.cs.connect.routes.Search;
 import utils.CORS;
 import utils.CleanupUsers;
+import utils.CollectionCounters;
+import utils.DuplicateEntries;
+import utils.OrphanFacets;
+import utils.RelatedEntries;
 
 /**
  * Default addr and neo4j credentials are read from conf/application.properties
@@ -56,6 +64,8 @@ public class Connect extends Application {
 
 		Database.configure(conf);
 		TaxonomyDB.configure(conf);
+		ResponseCache.configure(conf);
+		EventQueue.configure(conf);
 
 		// Use the ordinary mailman by default
 		useMailClient(new Mailman());
@@ -77,6 +87,7 @@ public class Connect extends Application {
 		use(new Account(this));
 		use(new Collection(this));
 		use(new Project(this));
+		use(new Search(this));
 
 		getErrorHandler().setExceptionHandler(RequestException.class, new ExceptionHandler() {
 			@Override
@@ -108,9 +119,20 @@ public class Connect extends Application {
 		pippo.start();
 
 		Bootstrap.runFirstTimeCheck();
+		Bootstrap.createIndexes();
+		EventQueue.recover();
 
 		CleanupUsers cl = new CleanupUsers(conn);
 		cl.everyTwelveHours();
+
+		new DuplicateEntries().everyTwelveHours();
+		new CollectionCounters().everyTwelveHours();
+		new OrphanFacets(conn.getPippoSettings().getInteger("connect.facets.sweep.batch", 500),
+			conn.getPippoSettings().getLong("connect.facets.sweep.pause", 200),
+			conn.getPippoSettings().getInteger("connect.changes.retention", 30)).everyTwelveHours();
+
+		SearchIndex.get().start(conn.getPippoSettings().getLong("connect.search.refresh", 10));
+		new RelatedEntries().every(conn.getPippoSettings().getLong("connect.related.interval", 15));
 	}
 
 }
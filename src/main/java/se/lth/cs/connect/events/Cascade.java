@@ -0,0 +1,179 @@
+package se.lth.cs.connect.events;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcBoolean;
+import iot.jcypher.query.values.JcNumber;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Metrics;
+import se.lth.cs.connect.modules.TaxonomyDB;
+
+/**
+ * Everything that deleting an account or some collections leads to,
+ * planned up front with a few set-based queries:
+ *
+ *   account --> collections it leaves, and those that are deleted because
+ *               it owned them or was the last one connected to them
+ *   deleted collections --> entries that are only in deleted collections
+ *               (deleted) and entries that are also elsewhere (detached)
+ *
+ * The plan can be reported with impact() before it is executed. Execution
+ * runs in chunked transactions, entries first, so an interrupted cascade
+ * leaves consistent (smaller) collections behind and can simply be run
+ * again.
+ */
+public class Cascade {
+    /* Entries per transaction */
+    static final int CHUNK = 500;
+
+    public static class Impact {
+        public String user;
+        public List<Long> deletedCollections, leftCollections;
+        public int deletedEntries, detachedEntries;
+    }
+
+    private String email;
+    private List<Long> doomed = new ArrayList<Long>();
+    private List<Long> left = new ArrayList<Long>();
+    private List<Long> orphans = new ArrayList<Long>();
+    private List<Long> detached = new ArrayList<Long>();
+
+    private Cascade() {}
+
+    /**
+     * Plan deleting an account. The account leaves all of its collections.
+     * Collections it owns are deleted, as are collections that nobody else
+     * is connected to once the invites it sent are withdrawn.
+     */
+    public static Cascade ofAccount(IDBAccess db, String email) {
+        final Cascade plan = new Cascade();
+        plan.email = email;
+
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (u:user {email: {email}})-[:MEMBER_OF]->(c:collection) " +
+                "OPTIONAL MATCH (c)-[r]-(o:user) WHERE o <> u " +
+                    "AND NOT (type(r) = 'INVITE' AND " +
+                        "any(i IN (o)-[:INVITER]->(u) WHERE last(rels(i)).parentnode = id(c))) " +
+                "WITH u, c, count(r) AS remaining " +
+                "RETURN id(c) AS id, " +
+                    "size((c)-[:OWNER]->(u)) > 0 OR remaining = 0 AS doomed")
+                .param("email", email))).get(0);
+
+        final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+        final List<Boolean> flags = res.resultOf(new JcBoolean("doomed"));
+        for (int i = 0; i < ids.size(); i++)
+            (flags.get(i) ? plan.doomed : plan.left).add(ids.get(i).longValue());
+
+        plan.planEntries(db);
+        return plan;
+    }
+
+    /**
+     * Plan deleting collections.
+     */
+    public static Cascade ofCollections(IDBAccess db, List<Long> collections) {
+        final Cascade plan = new Cascade();
+        plan.doomed.addAll(collections);
+        plan.planEntries(db);
+        return plan;
+    }
+
+    private void planEntries(IDBAccess db) {
+        if (doomed.isEmpty())
+            return;
+
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (c:collection)-[:CONTAINS]->(e:entry) WHERE id(c) IN {doomed} " +
+                "WITH DISTINCT e " +
+                "OPTIONAL MATCH (o:collection)-[:CONTAINS]->(e) WHERE NOT id(o) IN {doomed} " +
+                "WITH e, count(o) AS kept " +
+                "RETURN id(e) AS id, kept = 0 AS orphan")
+                .param("doomed", doomed))).get(0);
+
+        final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+        final List<Boolean> flags = res.resultOf(new JcBoolean("orphan"));
+        for (int i = 0; i < ids.size(); i++)
+            (flags.get(i) ? orphans : detached).add(ids.get(i).longValue());
+    }
+
+    public Impact impact() {
+        final Impact impact = new Impact();
+        impact.user = email;
+        impact.deletedCollections = doomed;
+        impact.leftCollections = left;
+        impact.deletedEntries = orphans.size();
+        impact.detachedEntries = detached.size();
+        return impact;
+    }
+
+    public Impact execute(IDBAccess db) {
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < detached.size(); i += CHUNK) {
+            final List<Long> chunk = detached.subList(i, Math.min(detached.size(), i + CHUNK));
+            Database.execute(db, Arrays.asList(
+                ChangeFeed.detached(doomed, chunk),
+                new Database.Statement(
+                    "MATCH (c:collection)-[m:CONTAINS]->(e:entry) " +
+                    "WHERE id(c) IN {doomed} AND id(e) IN {ids} DELETE m")
+                    .param("doomed", doomed)
+                    .param("ids", chunk)));
+        }
+
+        for (int i = 0; i < orphans.size(); i += CHUNK) {
+            final List<Long> chunk = orphans.subList(i, Math.min(orphans.size(), i + CHUNK));
+            Database.execute(db, DeleteEntryEvent.statements(chunk));
+        }
+
+        if (!doomed.isEmpty()) {
+            Database.execute(db, Collections.singletonList(new Database.Statement(
+                "MATCH (c:collection) WHERE id(c) IN {ids} DETACH DELETE c")
+                .param("ids", doomed)));
+            for (long id : doomed)
+                TaxonomyDB.delete(TaxonomyDB.collection(id));
+        }
+
+        if (email != null)
+            Database.execute(db, leaveAndDelete());
+
+        Metrics.timer("cascade").since(start);
+        return impact();
+    }
+
+    /**
+     * Withdraw the invites the account sent, leave the remaining collections
+     * and delete the account with its tokens, in one transaction.
+     */
+    private List<Database.Statement> leaveAndDelete() {
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        statements.add(new Database.Statement(
+            "MATCH (u:user {email: {email}})-[:MEMBER_OF]->(c:collection)" +
+                "<-[i:INVITE]-(:user)-[r:INVITER]->(u) " +
+            "WHERE r.parentnode = id(c) " +
+            "DELETE i, r")
+            .param("email", email));
+        statements.add(new Database.Statement(
+            "MATCH (u:user {email: {email}})-[r]-(c:collection) " +
+            "WITH c, collect(r) AS rels, collect(type(r)) AS types " +
+            "SET c.members = c.members - size(filter(t IN types WHERE t = 'MEMBER_OF')) " +
+            "FOREACH (r IN rels | DELETE r)")
+            .param("email", email));
+        if (!left.isEmpty())
+            statements.add(ChangeFeed.bump(left));
+        statements.add(new Database.Statement(
+            "MATCH (u:user {email: {email}}) " +
+            "OPTIONAL MATCH (u)--(t:token) " +
+            "DETACH DELETE u, t")
+            .param("email", email));
+        return statements;
+    }
+}
@@ -1,17 +1,15 @@
 package se.lth.cs.connect.events;
-import java.math.BigDecimal;
-
-import iot.jcypher.query.JcQueryResult;
-import iot.jcypher.query.api.IClause;
-import iot.jcypher.query.factories.clause.DO;
-import iot.jcypher.query.factories.clause.MATCH;
-import iot.jcypher.query.factories.clause.OPTIONAL_MATCH;
-import iot.jcypher.query.factories.clause.RETURN;
-import iot.jcypher.query.values.JcNode;
-import iot.jcypher.query.values.JcNumber;
+
+import iot.jcypher.database.IDBAccess;
 import se.lth.cs.connect.modules.Database;
 
-public final class DeleteAccountEvent implements UserEvent {
+/**
+ * Leave all collections, deleting those that are left without an owner or
+ * without anyone connected, then delete the account. See Cascade.
+ */
+public final class DeleteAccountEvent implements Journaled {
+    public static final String KIND = "delete-account";
+
     private final String email;
 
     public DeleteAccountEvent(String email) {
@@ -20,36 +18,33 @@ public final class DeleteAccountEvent implements UserEvent {
 
     @Override
 	public void execute() {
-        leaveAllCollections();
-        deleteAccount();
+        IDBAccess db = Database.access();
+        try {
+            Cascade.ofAccount(db, email).execute(db);
+        } finally {
+            db.close();
+        }
     }
 
-    private void leaveAllCollections() {
-        JcNode collection = new JcNode("c");
-        JcNumber collectionId = new JcNumber("x");
-
-        JcQueryResult res = Database.query(Database.access(), new IClause[]{
-            MATCH.node().label("user").property("email").value(email)
-                .relation().type("MEMBER_OF").node(collection).label("collection"),
-            RETURN.value(collection.id()).AS(collectionId)
-        });
+    @Override
+    public String kind() {
+        return KIND;
+    }
 
-        for (BigDecimal bi : res.resultOf(collectionId))
-            new LeaveCollectionEvent(bi.longValue(), email).execute();
+    @Override
+    public String argument() {
+        return email;
     }
 
     /**
-     * Delete account and associated tokens.
+     * What execute would delete, without deleting anything.
      */
-    private void deleteAccount() {
-        JcNode self = new JcNode("u");
-        JcNode token = new JcNode("t");
-
-        Database.query(Database.access(), new IClause[]{
-            MATCH.node(self).label("user").property("email").value(email),
-            OPTIONAL_MATCH.node(self).relation().node(token).label("token"),
-            DO.DETACH_DELETE(self),
-            DO.DETACH_DELETE(token)
-        });
+    public Cascade.Impact impact() {
+        IDBAccess db = Database.access();
+        try {
+            return Cascade.ofAccount(db, email).impact();
+        } finally {
+            db.close();
+        }
     }
-}
\ No newline at end of file
+}
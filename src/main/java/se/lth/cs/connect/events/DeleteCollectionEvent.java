@@ -1,23 +1,17 @@
 package se.lth.cs.connect.events;
 
-import java.io.File;
-import java.math.BigDecimal;
+import java.util.Collections;
 
-import iot.jcypher.query.JcQueryResult;
-import iot.jcypher.query.api.IClause;
-import iot.jcypher.query.factories.clause.DO;
-import iot.jcypher.query.factories.clause.MATCH;
-import iot.jcypher.query.factories.clause.RETURN;
-import iot.jcypher.query.factories.clause.WHERE;
-import iot.jcypher.query.values.JcNode;
-import iot.jcypher.query.values.JcNumber;
-import iot.jcypher.query.values.JcRelation;
+import iot.jcypher.database.IDBAccess;
 import se.lth.cs.connect.modules.Database;
-import se.lth.cs.connect.modules.TaxonomyDB;
 
+/**
+ * Delete a collection, its taxonomy and the entries that are in no other
+ * collection. See Cascade.
+ */
+public class DeleteCollectionEvent implements Journaled {
+    public static final String KIND = "delete-collection";
 
-
-public class DeleteCollectionEvent implements UserEvent {
     private long cid;
 
     public DeleteCollectionEvent(long id) {
@@ -26,61 +20,33 @@ public class DeleteCollectionEvent implements UserEvent {
 
     @Override
 	public void execute() {
-        detachMembers();
-        detachEntries();
-        deleteTaxonomy();
-        destroy();
+        IDBAccess db = Database.access();
+        try {
+            Cascade.ofCollections(db, Collections.singletonList(cid)).execute(db);
+        } finally {
+            db.close();
+        }
     }
 
-     private void detachMembers() {
-        JcNode collection = new JcNode("c");
-        JcRelation rel = new JcRelation("m");
-
-        Database.query(Database.access(), new IClause[]{
-            MATCH.node(collection).label("collection")
-                .relation(rel).node().label("user"),
-            WHERE.valueOf(collection.id()).EQUALS(cid),
-            DO.DELETE(rel)
-        });
-    }
-
-    private void detachEntries() {
-        JcNode entry = new JcNode("e");
-        JcNode collection = new JcNode("c");
-        JcNumber entryId = new JcNumber("x");
-
-        /* A more efficient variant that only returns the entries which
-           must be deleted (since they will be orphaned).
-
-            OPTIONAL MATCH (e:entry)-[r]-(c)
-            WHERE id(c) = XYZ
-                AND NOT
-                EXISTS((c)--(e)<-[:CONTAINS]-(:collection))
-            DETACH DELETE c
-            RETURN id(e)
-        */
-        JcQueryResult res = Database.query(Database.access(), new IClause[]{
-            MATCH.node(collection).label("collection")
-                .relation().node(entry).label("entry"),
-            WHERE.valueOf(collection.id()).EQUALS(cid),
-            RETURN.value(entry.id()).AS(entryId)
-        });
-
-        for (BigDecimal eid : res.resultOf(entryId))
-            new DetachEntryEvent(cid, eid.longValue()).execute();
+    @Override
+    public String kind() {
+        return KIND;
     }
 
-    private void deleteTaxonomy() {
-		new File(TaxonomyDB.collection(cid)).delete();
+    @Override
+    public String argument() {
+        return Long.toString(cid);
     }
 
-    private void destroy() {
-        JcNode collection = new JcNode("c");
-
-        Database.query(Database.access(), new IClause[]{
-            MATCH.node(collection).label("collection"),
-            WHERE.valueOf(collection.id()).EQUALS(cid),
-            DO.DETACH_DELETE(collection) /* rel to project still exists */
-        });
+    /**
+     * What execute would delete, without deleting anything.
+     */
+    public Cascade.Impact impact() {
+        IDBAccess db = Database.access();
+        try {
+            return Cascade.ofCollections(db, Collections.singletonList(cid)).impact();
+        } finally {
+            db.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,10 @@
 package se.lth.cs.connect.events;
 
-import iot.jcypher.query.api.IClause;
-import iot.jcypher.query.factories.clause.DO;
-import iot.jcypher.query.factories.clause.MATCH;
-import iot.jcypher.query.factories.clause.WHERE;
-import iot.jcypher.query.factories.xpression.X;
-import iot.jcypher.query.values.JcNode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import se.lth.cs.connect.modules.ChangeFeed;
 import se.lth.cs.connect.modules.Database;
 
 public class DeleteEntryEvent implements UserEvent {
@@ -19,20 +18,28 @@ public class DeleteEntryEvent implements UserEvent {
     }
 
     private void detachDelete() {
-        JcNode entry = new JcNode("e");
-        JcNode facet = new JcNode("f");
-
-        Database.query(Database.access(), new IClause[]{
-            MATCH.node(entry).label("entry"),
-            WHERE.valueOf(entry.id()).EQUALS(id),
-            DO.DETACH_DELETE(entry)
-        });
-
-        Database.query(Database.access(), new IClause[]{
-            MATCH.node(facet).label("facet"),
-            WHERE.NOT().existsPattern(X.node(facet).relation().node().label("entry")),
-            DO.DETACH_DELETE(facet)
-        });
+        Database.execute(Database.access(), statements(Collections.singletonList(id)));
     }
 
-}
\ No newline at end of file
+    /**
+     * Statements that delete entries, and the facets that only these
+     * entries were classified with, in one transaction. Only facets of the
+     * deleted entries are looked at; orphans from other causes are left to
+     * utils.OrphanFacets.
+     */
+    public static List<Database.Statement> statements(List<Long> ids) {
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        statements.add(ChangeFeed.removed(ids));
+        statements.add(new Database.Statement(
+            "MATCH (e:entry)-->(f:facet) WHERE id(e) IN {ids} " +
+            "WITH DISTINCT f " +
+            "OPTIONAL MATCH (f)--(other:entry) WHERE NOT id(other) IN {ids} " +
+            "WITH f, count(other) AS others WHERE others = 0 " +
+            "DETACH DELETE f")
+            .param("ids", ids));
+        statements.add(new Database.Statement(
+            "MATCH (e:entry) WHERE id(e) IN {ids} DETACH DELETE e")
+            .param("ids", ids));
+        return statements;
+    }
+}
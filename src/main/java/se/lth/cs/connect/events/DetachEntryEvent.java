@@ -1,15 +1,17 @@
 package se.lth.cs.connect.events;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import iot.jcypher.query.JcQueryResult;
 import iot.jcypher.query.api.IClause;
-import iot.jcypher.query.factories.clause.DO;
 import iot.jcypher.query.factories.clause.MATCH;
 import iot.jcypher.query.factories.clause.NATIVE;
 import iot.jcypher.query.factories.clause.WHERE;
 import iot.jcypher.query.factories.clause.WITH;
 import iot.jcypher.query.values.JcBoolean;
 import iot.jcypher.query.values.JcNode;
-import iot.jcypher.query.values.JcRelation;
+import se.lth.cs.connect.modules.ChangeFeed;
 import se.lth.cs.connect.modules.Database;
 
 public class DetachEntryEvent implements UserEvent {
@@ -28,18 +30,17 @@ public class DetachEntryEvent implements UserEvent {
     }
 
      private boolean detach() {
-        JcNode collection = new JcNode("c");
         JcNode entry = new JcNode("e");
-        JcRelation rel = new JcRelation("m");
         JcBoolean orphan = new JcBoolean("o");
 
-        Database.query(Database.access(), new IClause[]{
-            MATCH.node(collection).label("collection")
-                .relation(rel).node(entry).label("entry"),
-            WHERE.valueOf(entry.id()).EQUALS(eid)
-                .AND().valueOf(collection.id()).EQUALS(cid),
-            DO.DELETE(rel)
-        });
+        Database.execute(Database.access(), Arrays.asList(
+            ChangeFeed.detached(cid, Collections.singletonList(eid)),
+            new Database.Statement(
+                "MATCH (c:collection)-[m]->(e:entry) " +
+                "WHERE id(c) = {cid} AND id(e) = {eid} " +
+                "DELETE m SET c.entries = c.entries - 1")
+                .param("cid", cid)
+                .param("eid", eid)));
 
         JcQueryResult res = Database.query(Database.access(), new IClause[]{
             MATCH.node(entry).label("entry")
@@ -0,0 +1,251 @@
+package se.lth.cs.connect.events;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcNumber;
+import iot.jcypher.query.values.JcString;
+import ro.pippo.core.PippoSettings;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Jobs;
+import se.lth.cs.connect.modules.Metrics;
+
+/**
+ * Run events in the background instead of on the request thread.
+ *
+ * Every submitted event is journaled as an (:event) node before it is
+ * queued, and the node tracks its progress:
+ *
+ *   queued --> running --> done
+ *                      \-> queued (retry after a delay) ... --> failed
+ *
+ * Events run on a fixed number of workers. An event that throws is retried
+ * until it has been attempted connect.events.attempts times, which is safe
+ * since cascades can be run again (see Cascade). Events that were queued or
+ * running when the backend stopped are queued again by recover().
+ *
+ * Jobs that a client can simply restart, such as forks and merges, are run
+ * by Jobs instead.
+ */
+public class EventQueue {
+    /* Seconds to wait before the n:th retry is n * BACKOFF */
+    private static final long BACKOFF = 30;
+
+    /* Days that finished events are kept in the journal */
+    private static final long KEEP_DAYS = 7;
+
+    private static int attempts = 3;
+    private static ScheduledExecutorService workers = Executors.newScheduledThreadPool(2);
+
+    public static class Job {
+        public long id;
+        public String kind, argument, state, error;
+        public long attempts, created, started, finished;
+    }
+
+    public static synchronized void configure(PippoSettings props) {
+        attempts = Math.max(1, props.getInteger("connect.events.attempts", 3));
+        final int threads = Math.max(1, props.getInteger("connect.events.threads", 2));
+        workers.shutdown();
+        workers = Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * Journal the event and queue it. Returns the journaled job.
+     */
+    public static Job submit(Journaled event) {
+        final IDBAccess db = Database.access();
+        final long id;
+        try {
+            id = Database.execute(db, Collections.singletonList(new Database.Statement(
+                "CREATE (j:event {kind: {kind}, argument: {argument}, state: {state}, " +
+                    "attempts: 0, created: timestamp()}) " +
+                "RETURN id(j) AS id")
+                .param("kind", event.kind())
+                .param("argument", event.argument())
+                .param("state", Jobs.QUEUED)))
+                .get(0).resultOf(new JcNumber("id")).get(0).longValue();
+        } finally {
+            db.close();
+        }
+
+        schedule(id, event, 0);
+        return get(id);
+    }
+
+    /**
+     * Queue the events that did not finish before the last shutdown and
+     * forget old finished events. Run once at startup.
+     */
+    public static void recover() {
+        final IDBAccess db = Database.access();
+        final JcQueryResult res;
+        try {
+            res = Database.execute(db, Arrays.asList(
+                new Database.Statement(
+                    "MATCH (j:event) WHERE j.state IN [{queued}, {running}] " +
+                    "SET j.state = {queued} " +
+                    "RETURN id(j) AS id, j.kind AS kind, j.argument AS argument " +
+                    "ORDER BY id")
+                    .param("queued", Jobs.QUEUED)
+                    .param("running", Jobs.RUNNING),
+                new Database.Statement(
+                    "MATCH (j:event) WHERE j.state IN [{done}, {failed}] " +
+                        "AND j.finished < timestamp() - {keep} " +
+                    "DELETE j")
+                    .param("done", Jobs.DONE)
+                    .param("failed", Jobs.FAILED)
+                    .param("keep", KEEP_DAYS * 24 * 60 * 60 * 1000))).get(0);
+        } finally {
+            db.close();
+        }
+
+        final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+        final List<String> kinds = res.resultOf(new JcString("kind"));
+        final List<String> arguments = res.resultOf(new JcString("argument"));
+        for (int i = 0; i < ids.size(); i++) {
+            final long id = ids.get(i).longValue();
+            final Journaled event = restore(kinds.get(i), arguments.get(i));
+            if (event == null)
+                update(id, Jobs.FAILED, "Unknown event kind: " + kinds.get(i));
+            else
+                schedule(id, event, 0);
+        }
+        if (!ids.isEmpty())
+            System.out.println("EventQueue: recovered " + ids.size() + " events");
+    }
+
+    /**
+     * Recreate a journaled event, or null if the kind is unknown.
+     */
+    static Journaled restore(String kind, String argument) {
+        switch (kind) {
+            case DeleteAccountEvent.KIND:
+                return new DeleteAccountEvent(argument);
+            case DeleteCollectionEvent.KIND:
+                return new DeleteCollectionEvent(Long.parseLong(argument));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The journaled job, or null if there is no such job.
+     */
+    public static Job get(long id) {
+        final IDBAccess db = Database.access();
+        final JcQueryResult res;
+        try {
+            res = Database.execute(db, Collections.singletonList(new Database.Statement(
+                "MATCH (j:event) WHERE id(j) = {id} " +
+                "RETURN j.kind AS kind, j.argument AS argument, j.state AS state, " +
+                    "coalesce(j.error, '') AS error, j.attempts AS attempts, " +
+                    "j.created AS created, coalesce(j.started, 0) AS started, " +
+                    "coalesce(j.finished, 0) AS finished")
+                .param("id", id))).get(0);
+        } finally {
+            db.close();
+        }
+
+        final List<String> kinds = res.resultOf(new JcString("kind"));
+        if (kinds.isEmpty())
+            return null;
+
+        final Job job = new Job();
+        job.id = id;
+        job.kind = kinds.get(0);
+        job.argument = res.resultOf(new JcString("argument")).get(0);
+        job.state = res.resultOf(new JcString("state")).get(0);
+        job.error = res.resultOf(new JcString("error")).get(0);
+        if (job.error.isEmpty())
+            job.error = null;
+        job.attempts = res.resultOf(new JcNumber("attempts")).get(0).longValue();
+        job.created = res.resultOf(new JcNumber("created")).get(0).longValue();
+        job.started = res.resultOf(new JcNumber("started")).get(0).longValue();
+        job.finished = res.resultOf(new JcNumber("finished")).get(0).longValue();
+        return job;
+    }
+
+    private static synchronized void schedule(long id, Journaled event, long delay) {
+        workers.schedule(() -> run(id, event), delay, SECONDS);
+    }
+
+    private static void run(long id, Journaled event) {
+        final long start = System.nanoTime();
+        final long attempt;
+        try {
+            attempt = begin(id);
+        } catch (Exception e) {
+            // The journal is unreachable, so is the database the event needs
+            System.err.println("EventQueue: " + event.kind() + " " + id + ": " + e.getMessage());
+            schedule(id, event, BACKOFF);
+            return;
+        }
+        if (attempt < 0)
+            return;
+
+        try {
+            event.execute();
+            update(id, Jobs.DONE, null);
+        } catch (Exception e) {
+            System.err.println("EventQueue: " + event.kind() + " " + id +
+                " (attempt " + attempt + "): " + e.getMessage());
+            if (attempt < attempts) {
+                update(id, Jobs.QUEUED, e.getMessage());
+                schedule(id, event, attempt * BACKOFF);
+            } else {
+                update(id, Jobs.FAILED, e.getMessage());
+            }
+        } finally {
+            Metrics.timer("events." + event.kind()).since(start);
+        }
+    }
+
+    /* Mark the event as running and return which attempt this is, or -1 if
+       it was removed from the journal */
+    private static long begin(long id) {
+        final IDBAccess db = Database.access();
+        try {
+            final List<BigDecimal> attempt = Database.execute(db, Collections.singletonList(
+                new Database.Statement(
+                    "MATCH (j:event) WHERE id(j) = {id} " +
+                    "SET j.state = {state}, j.started = timestamp(), j.attempts = j.attempts + 1 " +
+                    "RETURN j.attempts AS attempts")
+                    .param("id", id)
+                    .param("state", Jobs.RUNNING)))
+                .get(0).resultOf(new JcNumber("attempts"));
+            return attempt.isEmpty() ? -1 : attempt.get(0).longValue();
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void update(long id, String state, String error) {
+        final IDBAccess db = Database.access();
+        try {
+            Database.execute(db, Collections.singletonList(new Database.Statement(
+                "MATCH (j:event) WHERE id(j) = {id} " +
+                "SET j.state = {state}, j.error = {error}, " +
+                    "j.finished = CASE WHEN {state} IN [{done}, {failed}] " +
+                        "THEN timestamp() ELSE j.finished END")
+                .param("id", id)
+                .param("state", state)
+                .param("error", error)
+                .param("done", Jobs.DONE)
+                .param("failed", Jobs.FAILED)));
+        } catch (Exception e) {
+            System.err.println("EventQueue: could not journal " + state + " of " + id +
+                ": " + e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package se.lth.cs.connect.events;
+
+/**
+ * An event that can be written to the journal of EventQueue and restored
+ * from it, see EventQueue.restore.
+ */
+public interface Journaled extends UserEvent {
+    public String kind();
+    public String argument();
+}
@@ -1,5 +1,7 @@
 package se.lth.cs.connect.events;
 
+import java.util.Collections;
+
 import iot.jcypher.query.JcQueryResult;
 import iot.jcypher.query.api.IClause;
 import iot.jcypher.query.factories.clause.DO;
@@ -11,6 +13,7 @@ import iot.jcypher.query.values.JcBoolean;
 import iot.jcypher.query.values.JcNode;
 import iot.jcypher.query.values.JcRelation;
 import iot.jcypher.query.values.JcString;
+import se.lth.cs.connect.modules.ChangeFeed;
 import se.lth.cs.connect.modules.Database;
 
 public class LeaveCollectionEvent implements UserEvent {
@@ -48,19 +51,31 @@ public class LeaveCollectionEvent implements UserEvent {
         });
     }
 
+    /**
+     * Delete every relation between a user and a collection, decrementing
+     * the member counter if one of them was MEMBER_OF. Returns the types of
+     * the deleted relations as type.
+     */
+    public static Database.Statement disconnect(long cid, String email) {
+        return new Database.Statement(
+            "MATCH (:user {email: {email}})-[r]-(c:collection) WHERE id(c) = {cid} " +
+            "WITH c, collect(r) AS rels, collect(type(r)) AS types " +
+            "SET c.members = c.members - size(filter(t IN types WHERE t = 'MEMBER_OF')) " +
+            "FOREACH (r IN rels | DELETE r) " +
+            "WITH types UNWIND types AS type " +
+            "RETURN type")
+            .param("cid", cid)
+            .param("email", email);
+    }
+
     private void leaveOrNuke() {
-        JcString owner = new JcString("o");
+        JcString owner = new JcString("type");
         JcNode collection = new JcNode("c");
         JcRelation rel = new JcRelation("r");
         JcBoolean exists = new JcBoolean("e");
 
-        JcQueryResult res = Database.query(Database.access(), new IClause[]{
-            MATCH.node().label("user").property("email").value(email)
-                .relation(rel).node(collection).label("collection"),
-            WHERE.valueOf(collection.id()).EQUALS(cid),
-            DO.DELETE(rel),
-            RETURN.value(rel.type()).AS(owner),
-        });
+        JcQueryResult res = Database.execute(Database.access(),
+            Collections.singletonList(disconnect(cid, email))).get(0);
 
 
         // If user was owner, delete the collection
@@ -82,5 +97,7 @@ public class LeaveCollectionEvent implements UserEvent {
         boolean hasMembers = res.resultOf(exists).size() > 0;
         if (!hasMembers)
             new DeleteCollectionEvent(cid).execute();
+        else
+            ChangeFeed.bump(Database.access(), cid);
     }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package se.lth.cs.connect.modules;
 import java.security.SecureRandom;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.Collections;
 import java.util.List;
 
 import com.lambdaworks.crypto.SCryptUtil;
@@ -64,8 +65,10 @@ public class AccountSystem {
 
         public boolean authenticate(String email, String password) {
             // important to fail on email check first, otherwise very slow
+            // placeholders of invited users have no password
             return email != null && password != null &&
                 this.email.equals(email) &&
+                this.password != null && !this.password.isEmpty() &&
                 SCryptUtil.check(password, this.password);
         }
     }
@@ -157,6 +160,26 @@ public class AccountSystem {
         return true;
     }
 
+    /**
+     * Create unregistered placeholder accounts, without a password, for the
+     * emails that don't have an account yet. They become real accounts when
+     * the user registers, see createAccount.
+     *
+     * Synchronized with createAccount for the same reason, but doesn't hash
+     * anything, so it is one quick query however many emails there are.
+     */
+    public static synchronized void createPlaceholders(List<String> emails) {
+        Database.execute(Database.access(), Collections.singletonList(
+            new Database.Statement(
+                "UNWIND {emails} AS email " +
+                "OPTIONAL MATCH (u:user {email: email}) " +
+                "WITH email, u WHERE u IS NULL " +
+                "CREATE (:user {email: email, trust: {trust}, signupdate: {now}})")
+                .param("emails", emails)
+                .param("trust", TrustLevel.UNREGISTERED)
+                .param("now", ZonedDateTime.now(ZoneOffset.UTC).toString())));
+    }
+
     /**
      * Generate 32 bytes of random data and encode it with base64.
      */
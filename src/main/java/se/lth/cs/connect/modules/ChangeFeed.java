@@ -0,0 +1,276 @@
+package se.lth.cs.connect.modules;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcNode;
+import iot.jcypher.query.values.JcNumber;
+import iot.jcypher.query.values.JcRelation;
+import se.lth.cs.connect.Graph;
+import se.lth.cs.connect.RequestException;
+
+/**
+ * Change sequence for entries, so that clients can ask for what changed
+ * since they last synced instead of fetching whole graphs.
+ *
+ * Every write that changes an entry, its classification or which
+ * collections contain it stamps the entry (or the CONTAINS relation) with
+ * the next value of a sequence node. Entries that leave a collection leave
+ * a (:tombstone {entry, collection, project, seq}) behind.
+ *
+ * Tombstones are pruned after a retention window (see prune), and the
+ * sequence node remembers the highest seq pruned. A since below that may
+ * have missed removals, so it is refused and the client must resync from
+ * scratch.
+ *
+ * The sequence node is locked from the increment until commit, so sequence
+ * numbers become visible in order and a client never skips past a change.
+ *
+ * The same statements set c.version to seq on every collection they
+ * change, or that contains an entry they change. See ResponseCache.
+ */
+public class ChangeFeed {
+    /**
+     * Prefix for a statement that should be stamped. Binds the next
+     * sequence number to seq.
+     */
+    public static final String NEXT =
+        "MERGE (s:sequence {name: 'changes'}) " +
+        "SET s.value = coalesce(s.value, 0) + 1 " +
+        "WITH s.value AS seq ";
+
+    /**
+     * Suffix for a NEXT statement that has changed the entry e: bumps the
+     * version of the collections that contain it.
+     */
+    public static final String CONTAINING =
+        "WITH e, seq MATCH (c:collection)-[:CONTAINS]->(e) SET c.version = seq ";
+
+    /**
+     * Changes after some sequence number: entries that were added or
+     * changed (and their classification), and ids of entries that were
+     * removed. seq is the number to pass as since for the next poll.
+     */
+    public static class Changes {
+        public long seq;
+        public Graph.Node[] nodes;
+        public Graph.Edge[] edges;
+        public long[] removed;
+    }
+
+    /**
+     * Stamp entries whose properties or classification changed.
+     */
+    public static Database.Statement touch(List<Long> entries) {
+        return new Database.Statement(NEXT +
+            "MATCH (e:entry) WHERE id(e) IN {ids} " +
+            "SET e.seq = seq " +
+            CONTAINING)
+            .param("ids", entries);
+    }
+
+    public static void touch(IDBAccess db, List<Long> entries) {
+        Database.execute(db, Collections.singletonList(touch(entries)));
+    }
+
+    /**
+     * Tombstones for entries that are removed from a collection. Must run
+     * before the CONTAINS relations are deleted.
+     */
+    public static Database.Statement detached(long collection, List<Long> entries) {
+        return new Database.Statement(NEXT +
+            "MATCH (c:collection) WHERE id(c) = {collection} " +
+            "SET c.version = seq " +
+            "WITH c, seq " +
+            "OPTIONAL MATCH (c)-[:EXTENDS]->(p:project) " +
+            "UNWIND {ids} AS entry " +
+            "CREATE (:tombstone {entry: entry, collection: id(c), project: p.name, " +
+                "seq: seq, created: timestamp()})")
+            .param("collection", collection)
+            .param("ids", entries);
+    }
+
+    /**
+     * Tombstones for entries that are removed from some of the collections
+     * that contain them, one per such collection. Must run before the
+     * CONTAINS relations are deleted.
+     */
+    public static Database.Statement detached(List<Long> collections, List<Long> entries) {
+        return new Database.Statement(NEXT +
+            "MATCH (c:collection)-[:CONTAINS]->(e:entry) " +
+            "WHERE id(c) IN {collections} AND id(e) IN {ids} " +
+            "OPTIONAL MATCH (c)-[:EXTENDS]->(p:project) " +
+            "CREATE (:tombstone {entry: id(e), collection: id(c), project: p.name, " +
+                "seq: seq, created: timestamp()}) " +
+            "WITH c, seq, count(*) AS removed " +
+            "SET c.version = seq, c.entries = c.entries - removed")
+            .param("collections", collections)
+            .param("ids", entries);
+    }
+
+    /**
+     * Tombstones for entries that are about to be deleted, one for every
+     * collection that contains them. Also decrements the entry counters of
+     * those collections, see CollectionCounters.
+     */
+    public static Database.Statement removed(List<Long> entries) {
+        return new Database.Statement(NEXT +
+            "MATCH (c:collection)-[:CONTAINS]->(e:entry) WHERE id(e) IN {ids} " +
+            "OPTIONAL MATCH (c)-[:EXTENDS]->(p:project) " +
+            "CREATE (:tombstone {entry: id(e), collection: id(c), project: p.name, " +
+                "seq: seq, created: timestamp()}) " +
+            "WITH c, seq, count(*) AS removed " +
+            "SET c.version = seq, c.entries = c.entries - removed")
+            .param("ids", entries);
+    }
+
+    /**
+     * Bump the version of a collection whose members (or anything else
+     * that isn't an entry) changed.
+     */
+    public static Database.Statement bump(List<Long> collections) {
+        return new Database.Statement(NEXT +
+            "MATCH (c:collection) WHERE id(c) IN {ids} " +
+            "SET c.version = seq")
+            .param("ids", collections);
+    }
+
+    public static void bump(IDBAccess db, long collection) {
+        Database.execute(db, Collections.singletonList(
+            bump(Collections.singletonList(collection))));
+    }
+
+    /**
+     * Version of a collection, or -1 if there is no such collection.
+     */
+    public static long version(IDBAccess db, long collection) {
+        final List<BigDecimal> found = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (c:collection) WHERE id(c) = {collection} " +
+                "RETURN coalesce(c.version, 0) AS version")
+                .param("collection", collection))).get(0).resultOf(new JcNumber("version"));
+        return found.isEmpty() ? -1 : found.get(0).longValue();
+    }
+
+    /**
+     * The latest sequence number handed out.
+     */
+    public static long current(IDBAccess db) {
+        return Database.execute(db, Collections.singletonList(sequence()))
+            .get(0).resultOf(new JcNumber("seq")).get(0).longValue();
+    }
+
+    /**
+     * The highest sequence number of a pruned tombstone. Changes since an
+     * earlier number are incomplete.
+     */
+    public static long pruned(IDBAccess db) {
+        return Database.execute(db, Collections.singletonList(sequence()))
+            .get(0).resultOf(new JcNumber("pruned")).get(0).longValue();
+    }
+
+    static Database.Statement sequence() {
+        return new Database.Statement(
+            "OPTIONAL MATCH (s:sequence {name: 'changes'}) " +
+            "RETURN coalesce(s.value, 0) AS seq, coalesce(s.pruned, 0) AS pruned");
+    }
+
+    /**
+     * Delete at most batch tombstones created before some time (ms since
+     * epoch) and raise the pruned mark to the highest seq deleted. Returns
+     * the number deleted, 0 when there is nothing left to prune.
+     */
+    public static long prune(IDBAccess db, long before, int batch) {
+        final List<BigDecimal> deleted = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (t:tombstone) WHERE coalesce(t.created, 0) < {before} " +
+                "WITH t LIMIT {batch} " +
+                "WITH collect(t) AS pruned, max(t.seq) AS last " +
+                "WHERE size(pruned) > 0 " +
+                "MERGE (s:sequence {name: 'changes'}) " +
+                "SET s.pruned = CASE WHEN coalesce(s.pruned, 0) > last THEN s.pruned ELSE last END " +
+                "FOREACH (t IN pruned | DELETE t) " +
+                "RETURN size(pruned) AS deleted")
+                .param("before", before)
+                .param("batch", batch))).get(0).resultOf(new JcNumber("deleted"));
+        return deleted.isEmpty() ? 0 : deleted.get(0).longValue();
+    }
+
+    public static void renameProject(IDBAccess db, String from, String to) {
+        Database.execute(db, Collections.singletonList(new Database.Statement(
+            "MATCH (t:tombstone {project: {from}}) SET t.project = {to}")
+            .param("from", from)
+            .param("to", to)));
+    }
+
+    /**
+     * Changes to a collection. since < 0 returns every entry; a since
+     * below the pruned mark is refused with 410.
+     */
+    public static Changes ofCollection(IDBAccess db, long collection, long since) {
+        return changes(db, since,
+            "MATCH (c:collection)-[ce:CONTAINS]->(e:entry) WHERE id(c) = {scope} " +
+            "AND (coalesce(e.seq, 0) > {since} OR coalesce(ce.seq, 0) > {since}) ",
+            "MATCH (t:tombstone) WHERE t.collection = {scope} AND t.seq > {since} " +
+            "WITH DISTINCT t.entry AS entry " +
+            "OPTIONAL MATCH (c:collection)-[:CONTAINS]->(e:entry) " +
+                "WHERE id(c) = {scope} AND id(e) = entry " +
+            "WITH entry, e WHERE e IS NULL ",
+            collection);
+    }
+
+    /**
+     * Changes to the accepted entries of a project. since < 0 returns
+     * every entry; a since below the pruned mark is refused with 410.
+     */
+    public static Changes ofProject(IDBAccess db, String project, long since) {
+        return changes(db, since,
+            "MATCH (:project {name: {scope}})<-[:EXTENDS]-(:collection)-[ce:CONTAINS]->(e:entry) " +
+            "WHERE NOT has(e.pending) " +
+            "AND (coalesce(e.seq, 0) > {since} OR coalesce(ce.seq, 0) > {since}) ",
+            "MATCH (t:tombstone {project: {scope}}) WHERE t.seq > {since} " +
+            "WITH DISTINCT t.entry AS entry " +
+            "OPTIONAL MATCH (e:entry) WHERE id(e) = entry " +
+            "WITH entry, e WHERE e IS NULL OR has(e.pending) OR NOT " +
+                "(e)<-[:CONTAINS]-(:collection)-[:EXTENDS]->(:project {name: {scope}}) ",
+            project);
+    }
+
+    private static Changes changes(IDBAccess db, long since, String changed,
+            String removed, Object scope) {
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        statements.add(sequence());
+        statements.add(new Database.Statement(changed +
+            "WITH DISTINCT e " +
+            "OPTIONAL MATCH (e)-[r]->(:facet) " +
+            "RETURN e, r")
+            .param("scope", scope)
+            .param("since", since));
+        statements.add(new Database.Statement(removed +
+            "RETURN DISTINCT entry")
+            .param("scope", scope)
+            .param("since", since));
+
+        // The sequence is read first, so nothing that commits later is lost
+        final List<JcQueryResult> res = Database.execute(db, statements);
+
+        if (since >= 0 && since < res.get(0).resultOf(new JcNumber("pruned")).get(0).longValue())
+            throw new RequestException(410, "Changes since " + since +
+                " are no longer kept, poll with since=-1 to resync.");
+
+        final Changes changes = new Changes();
+        changes.seq = res.get(0).resultOf(new JcNumber("seq")).get(0).longValue();
+        changes.nodes = Graph.Node.fromList(res.get(1).resultOf(new JcNode("e")));
+        changes.edges = Graph.Edge.fromList(res.get(1).resultOf(new JcRelation("r")));
+
+        final List<BigDecimal> ids = res.get(2).resultOf(new JcNumber("entry"));
+        changes.removed = new long[ids.size()];
+        for (int i = 0; i < changes.removed.length; i++)
+            changes.removed[i] = ids.get(i).longValue();
+        return changes;
+    }
+}
@@ -1,8 +1,24 @@
 package se.lth.cs.connect.modules;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import iot.jcypher.database.DBAccessFactory;
 import iot.jcypher.database.DBProperties;
 import iot.jcypher.database.DBType;
@@ -73,6 +89,25 @@ public class Database {
         }
     }
 
+    /**
+     * A native cypher statement with parameters, referenced as {name} in the
+     * statement. Used where jcypher falls short, i.e. for UNWIND over lists.
+     */
+    public static class Statement {
+        public final String statement;
+        public final Map<String,Object> parameters;
+
+        public Statement(String statement) {
+            this.statement = statement;
+            this.parameters = new HashMap<String,Object>();
+        }
+
+        public Statement param(String name, Object value) {
+            parameters.put(name, value);
+            return this;
+        }
+    }
+
     public static void configure(PippoSettings props) {
         USERNAME = props.getString("neo4j.username", "neo4j");
         PASSWORD = props.getString("neo4j.password", "neo4j");
@@ -96,4 +131,61 @@ public class Database {
             throw new DatabaseException(res);
         return res;
     }
-}
\ No newline at end of file
+
+    /**
+     * Run the statements in a single transaction, using the transactional
+     * http endpoint directly since jcypher can't pass parameters to native
+     * cypher. Returns one result per statement. If any statement fails
+     * nothing is committed and a DatabaseException is thrown.
+     */
+    public static List<JcQueryResult> execute(IDBAccess access, List<Statement> statements) {
+        final Map<String,Object> body = new HashMap<String,Object>();
+        final List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
+        for (Statement st : statements) {
+            Map<String,Object> entry = new HashMap<String,Object>();
+            entry.put("statement", st.statement);
+            entry.put("parameters", st.parameters);
+            entry.put("resultDataContents", new String[]{ "rest", "graph" });
+            list.add(entry);
+        }
+        body.put("statements", list);
+
+        JsonObject json;
+        try {
+            final String auth = Base64.getEncoder().encodeToString(
+                (USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+            final URL url = new URL(HOST.replaceAll("/+$", "") + "/db/data/transaction/commit");
+
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Authorization", "Basic " + auth);
+            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            conn.setRequestProperty("Accept", "application/json; charset=UTF-8");
+
+            try (OutputStream os = conn.getOutputStream()) {
+                (new ObjectMapper()).writeValue(os, body);
+            }
+
+            try (InputStream is = conn.getResponseCode() < 400 ?
+                    conn.getInputStream() : conn.getErrorStream();
+                 JsonReader reader = Json.createReader(is)) {
+                json = reader.readObject();
+            }
+        } catch (IOException e) {
+            JcQueryResult res = new JcQueryResult(
+                Json.createObjectBuilder().build(), 0, access);
+            res.addGeneralError(new JcError("IOException", e.getMessage(), null));
+            throw new DatabaseException(res);
+        }
+
+        final List<JcQueryResult> results = new ArrayList<JcQueryResult>();
+        for (int i = 0; i < statements.size(); i++) {
+            JcQueryResult res = new JcQueryResult(json, i, access);
+            if (res.hasErrors())
+                throw new DatabaseException(res);
+            results.add(res);
+        }
+        return results;
+    }
+}
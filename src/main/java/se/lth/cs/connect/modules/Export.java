@@ -0,0 +1,250 @@
+package se.lth.cs.connect.modules;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import iot.jcypher.graph.GrNode;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcCollection;
+import iot.jcypher.query.values.JcNode;
+import ro.pippo.core.Response;
+import ro.pippo.core.route.RouteContext;
+import se.lth.cs.connect.Graph;
+import se.lth.cs.connect.RequestException;
+
+/**
+ * Stream all entries of a collection or project, one row per entry, as
+ * NDJSON or CSV.
+ *
+ * Entries are read in pages of PAGE entries, ordered by id and continued
+ * after the last id of the previous page, and each page is written before
+ * the next is read. Only one page is held in memory no matter how many
+ * entries are exported. The response is gzipped when the client accepts it.
+ *
+ * Classifications are flattened to facet --> [texts]. CSV has one column
+ * per facet of the taxonomy, with the texts separated by "; " and any ;
+ * or \ inside a text escaped with \, so that EntryImport reads back the
+ * same texts.
+ */
+public class Export {
+    static final int PAGE = 500;
+
+    public static final String NDJSON = "ndjson", CSV = "csv";
+
+    private static final String[] FIELDS = { "id", "type", "hash", "contact",
+        "reference", "doi", "description", "date", "pending" };
+
+    public static class Row {
+        public long id;
+        public String type, hash, contact, reference, doi, description, date;
+        public boolean pending;
+        public Map<String, List<String>> classification;
+    }
+
+    /**
+     * The entries to export: a pattern that binds e, a condition on it (or
+     * null), the parameters they use, and whether pending entries are
+     * included.
+     */
+    public static class Source {
+        final String match, where;
+        final Map<String, Object> params = new LinkedHashMap<String, Object>();
+        final boolean pending;
+
+        public Source(String match, String where, boolean pending) {
+            this.match = match;
+            this.where = where;
+            this.pending = pending;
+        }
+
+        public Source param(String name, Object value) {
+            params.put(name, value);
+            return this;
+        }
+    }
+
+    public static void send(RouteContext rc, Source source, List<String> facets, String filename) {
+        final String format = rc.getParameter("format").toString(NDJSON);
+        if (!NDJSON.equals(format) && !CSV.equals(format))
+            throw new RequestException("'format' must be ndjson or csv");
+
+        final long start = System.nanoTime();
+        final boolean gzip = TaxonomyDB.acceptsGzip(rc);
+        final Response response = rc.getResponse();
+        response.contentType(CSV.equals(format) ? "text/csv; charset=UTF-8" :
+            "application/x-ndjson; charset=UTF-8");
+        response.header("Content-Disposition",
+            "attachment; filename=\"" + filename + "." + format + "\"");
+        response.header("Vary", "Accept-Encoding");
+        if (gzip)
+            response.header("Content-Encoding", "gzip");
+        response.chunked(true);
+
+        final ObjectMapper mapper = new ObjectMapper();
+        try {
+            OutputStream os = response.getOutputStream();
+            if (gzip)
+                os = new GZIPOutputStream(os, 8192, true);
+            final Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+
+            if (CSV.equals(format))
+                header(out, facets);
+
+            long after = -1;
+            List<Row> rows;
+            do {
+                rows = page(rc, source, after);
+                for (Row row : rows) {
+                    if (CSV.equals(format))
+                        csv(out, row, facets);
+                    else
+                        out.write(mapper.writeValueAsString(row) + "\n");
+                }
+                out.flush();
+                if (!rows.isEmpty())
+                    after = rows.get(rows.size() - 1).id;
+            } while (rows.size() == PAGE);
+
+            out.close();
+        } catch (IOException e) {
+            // The client went away, nothing left to answer
+            System.err.println("Export: " + filename + ": " + e.getMessage());
+        }
+        Metrics.timer("export." + format).since(start);
+    }
+
+    static List<Row> page(RouteContext rc, Source source, long after) {
+        final Database.Statement statement = new Database.Statement(
+            "MATCH " + source.match + " " +
+            "WHERE id(e) > {after} " +
+                (source.where == null ? "" : "AND " + source.where + " ") +
+                (source.pending ? "" : "AND NOT has(e.pending) ") +
+            "WITH DISTINCT e ORDER BY id(e) LIMIT {page} " +
+            "OPTIONAL MATCH (e)-[r]->(f:facet) " +
+            "WITH e, collect(type(r) + ':' + f.text) AS taxonomy " +
+            "RETURN e, taxonomy ORDER BY id(e)")
+            .param("after", after)
+            .param("page", PAGE);
+        statement.parameters.putAll(source.params);
+
+        final JcQueryResult res = Database.execute(rc.getLocal("db"),
+            Collections.singletonList(statement)).get(0);
+        final List<GrNode> nodes = res.resultOf(new JcNode("e"));
+        final List<List<?>> taxonomies = res.resultOf(new JcCollection("taxonomy"));
+
+        final List<Row> rows = new ArrayList<Row>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            final Graph.Node node = new Graph.Node(nodes.get(i));
+            final Row row = new Row();
+            row.id = node.id;
+            row.type = node.type;
+            row.hash = node.hash;
+            row.contact = node.contact;
+            row.reference = node.reference;
+            row.doi = node.doi;
+            row.description = node.description;
+            row.date = node.date;
+            row.pending = node.pending;
+            row.classification = new TreeMap<String, List<String>>();
+            for (Object t : taxonomies.get(i)) {
+                final String pair = t.toString();
+                final int colon = pair.indexOf(':');
+                row.classification
+                    .computeIfAbsent(pair.substring(0, colon), (k) -> new ArrayList<String>())
+                    .add(pair.substring(colon + 1));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void header(Writer out, List<String> facets) throws IOException {
+        final List<String> cells = new ArrayList<String>();
+        for (String field : FIELDS)
+            cells.add(field);
+        cells.addAll(facets);
+        line(out, cells);
+    }
+
+    private static void csv(Writer out, Row row, List<String> facets) throws IOException {
+        final List<String> cells = new ArrayList<String>();
+        cells.add(Long.toString(row.id));
+        cells.add(row.type);
+        cells.add(row.hash);
+        cells.add(row.contact);
+        cells.add(row.reference);
+        cells.add(row.doi);
+        cells.add(row.description);
+        cells.add(row.date);
+        cells.add(Boolean.toString(row.pending));
+        for (String facet : facets) {
+            final List<String> texts = row.classification.get(facet);
+            cells.add(texts == null ? "" : joinTexts(texts));
+        }
+        line(out, cells);
+    }
+
+    /**
+     * Texts of a facet as one csv cell, see splitTexts.
+     */
+    public static String joinTexts(List<String> texts) {
+        final StringBuilder cell = new StringBuilder();
+        for (String text : texts) {
+            if (cell.length() > 0)
+                cell.append("; ");
+            cell.append(text.replace("\\", "\\\\").replace(";", "\\;"));
+        }
+        return cell.toString();
+    }
+
+    /**
+     * Texts of a facet from a csv cell written by joinTexts, or typed by
+     * hand: separated by unescaped ;, trimmed, empty texts left out.
+     */
+    public static List<String> splitTexts(String cell) {
+        final List<String> texts = new ArrayList<String>();
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i <= cell.length(); i++) {
+            final char c = i < cell.length() ? cell.charAt(i) : ';';
+            if (c == '\\' && i + 1 < cell.length()) {
+                text.append(cell.charAt(++i));
+            } else if (c == ';') {
+                final String t = text.toString().trim();
+                if (!t.isEmpty())
+                    texts.add(t);
+                text.setLength(0);
+            } else {
+                text.append(c);
+            }
+        }
+        return texts;
+    }
+
+    /* RFC 4180: quote cells with separators, quotes or line breaks */
+    private static void line(Writer out, List<String> cells) throws IOException {
+        for (int i = 0; i < cells.size(); i++) {
+            if (i > 0)
+                out.write(',');
+            final String cell = cells.get(i) == null ? "" : cells.get(i);
+            if (cell.indexOf(',') >= 0 || cell.indexOf('"') >= 0 ||
+                    cell.indexOf('\n') >= 0 || cell.indexOf('\r') >= 0)
+                out.write('"' + cell.replace("\"", "\"\"") + '"');
+            else
+                out.write(cell);
+        }
+        out.write("\r\n");
+    }
+}
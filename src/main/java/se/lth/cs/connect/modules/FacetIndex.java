@@ -0,0 +1,314 @@
+package se.lth.cs.connect.modules;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcNumber;
+import iot.jcypher.query.values.JcString;
+import se.lth.cs.connect.Graph;
+import se.lth.cs.connect.RequestException;
+
+/**
+ * Accepted entries of a project by classification, as one bitset of entry
+ * ordinals per (relation type, facet text) and their union per relation
+ * type, so that filters such as
+ *
+ *      EFFECT=testing AND (SCOPE="open source" OR NOT IMPROVING)
+ *
+ * are answered by bitset algebra instead of graph traversals.
+ *
+ * Like the search index, the bitsets follow the project change feed: a
+ * refresh applies every change stamped since the last one, which covers
+ * all write paths and other backend instances.
+ */
+public class FacetIndex {
+    private static final ConcurrentHashMap<String, FacetIndex> indices =
+        new ConcurrentHashMap<String, FacetIndex>();
+
+    private static final Pattern TOKEN =
+        Pattern.compile("\\s*([()=]|\"[^\"]*\"|[A-Za-z0-9_.-]+)\\s*");
+
+    private final String project;
+    private long seq = -1;
+
+    /* entry id <--> ordinal; ordinals are never reused */
+    private final Map<Long, Integer> ordinals = new HashMap<Long, Integer>();
+    private long[] ids = new long[64];
+    private int size;
+
+    /* Entries currently in the project, entries per relation type and per
+       "TYPE:text" of a classification */
+    private final BitSet live = new BitSet();
+    private final Map<String, BitSet> types = new HashMap<String, BitSet>();
+    private final Map<String, BitSet> values = new HashMap<String, BitSet>();
+
+    /* ordinal --> its "TYPE:text" keys, so that only those are cleared */
+    private final Map<Integer, List<String>> classified = new HashMap<Integer, List<String>>();
+
+    private FacetIndex(String project) {
+        this.project = project;
+    }
+
+    public static FacetIndex of(String project) {
+        FacetIndex index = indices.get(project);
+        if (index == null) {
+            indices.putIfAbsent(project, new FacetIndex(project));
+            index = indices.get(project);
+        }
+        return index;
+    }
+
+    /**
+     * Drop the index of a project that was renamed or deleted.
+     */
+    public static void forget(String project) {
+        indices.remove(project);
+    }
+
+    /**
+     * Apply changes stamped since the last refresh.
+     */
+    public synchronized void refresh(IDBAccess db) {
+        if (seq >= 0 && ChangeFeed.current(db) == seq)
+            return;
+
+        // Removals this far back were pruned, start over
+        if (seq >= 0 && seq < ChangeFeed.pruned(db)) {
+            live.clear();
+            types.clear();
+            values.clear();
+            classified.clear();
+            seq = -1;
+        }
+
+        final ChangeFeed.Changes changes = ChangeFeed.ofProject(db, project, seq);
+
+        for (long id : changes.removed) {
+            final Integer ord = ordinals.get(id);
+            if (ord != null)
+                clear(ord);
+        }
+
+        final Map<Long, Integer> changed = new HashMap<Long, Integer>();
+        for (Graph.Node node : changes.nodes) {
+            final int ord = ordinal(node.id);
+            clear(ord);
+            live.set(ord);
+            changed.put(node.id, ord);
+        }
+
+        final Map<Long, String> texts = texts(db, changes.edges);
+        for (Graph.Edge edge : changes.edges) {
+            final Integer ord = changed.get(edge.source);
+            final String text = texts.get(edge.target);
+            if (ord == null || text == null)
+                continue;
+
+            final String key = edge.type + ":" + text;
+            bits(types, edge.type).set(ord);
+            bits(values, key).set(ord);
+            classified.computeIfAbsent(ord, (k) -> new ArrayList<String>()).add(key);
+        }
+
+        seq = changes.seq;
+    }
+
+    /* Text of the facets that the edges point to, by facet id */
+    private static Map<Long, String> texts(IDBAccess db, Graph.Edge[] edges) {
+        final Set<Long> facets = new HashSet<Long>();
+        for (Graph.Edge edge : edges)
+            facets.add(edge.target);
+        if (facets.isEmpty())
+            return Collections.emptyMap();
+
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (f:facet) WHERE id(f) IN {ids} " +
+                "RETURN id(f) AS id, f.text AS text")
+                .param("ids", new ArrayList<Long>(facets)))).get(0);
+
+        final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+        final List<String> texts = res.resultOf(new JcString("text"));
+        final Map<Long, String> byId = new HashMap<Long, String>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (texts.get(i) != null)
+                byId.put(ids.get(i).longValue(), texts.get(i));
+        }
+        return byId;
+    }
+
+    private static BitSet bits(Map<String, BitSet> map, String key) {
+        BitSet bits = map.get(key);
+        if (bits == null) {
+            bits = new BitSet();
+            map.put(key, bits);
+        }
+        return bits;
+    }
+
+    private int ordinal(long id) {
+        Integer ord = ordinals.get(id);
+        if (ord == null) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ord = size++;
+            ids[ord] = id;
+            ordinals.put(id, ord);
+        }
+        return ord;
+    }
+
+    private void clear(int ord) {
+        live.clear(ord);
+        final List<String> keys = classified.remove(ord);
+        if (keys == null)
+            return;
+
+        for (String key : keys) {
+            values.get(key).clear(ord);
+            types.get(key.substring(0, key.indexOf(':'))).clear(ord);
+        }
+    }
+
+    /**
+     * Ids of entries matching a filter, in ascending order. Facet ids are
+     * expanded to their subtree in the taxonomy, like
+     * /v1/project/{name}/classified, so EFFECT=x also matches entries with
+     * x under a descendant of EFFECT.
+     */
+    public synchronized long[] filter(String expression, TaxonomyIndex taxonomy) {
+        final BitSet match = new Parser(expression, taxonomy).parse();
+
+        final long[] found = new long[match.cardinality()];
+        int n = 0;
+        for (int ord = match.nextSetBit(0); ord >= 0; ord = match.nextSetBit(ord + 1))
+            found[n++] = ids[ord];
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * Recursive descent over
+     *
+     *      or   := and (OR and)*
+     *      and  := not (AND not)*
+     *      not  := NOT not | atom
+     *      atom := ( or ) | facet id | facet id = text
+     *
+     * evaluating to bitsets as it goes. Operators are case insensitive,
+     * texts are matched exactly and may be quoted with "".
+     */
+    private class Parser {
+        private final TaxonomyIndex taxonomy;
+        private final List<String> tokens = new ArrayList<String>();
+        private int pos;
+
+        Parser(String expression, TaxonomyIndex taxonomy) {
+            this.taxonomy = taxonomy;
+
+            final Matcher m = TOKEN.matcher(expression);
+            int end = 0;
+            while (m.lookingAt()) {
+                tokens.add(m.group(1));
+                end = m.end();
+                m.region(end, expression.length());
+            }
+            if (end != expression.length())
+                throw new RequestException("Invalid filter near '" + expression.substring(end) + "'");
+        }
+
+        BitSet parse() {
+            final BitSet bits = or();
+            if (pos != tokens.size())
+                throw new RequestException("Unexpected '" + tokens.get(pos) + "' in filter");
+            return bits;
+        }
+
+        private boolean accept(String token) {
+            if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(token)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private BitSet or() {
+            final BitSet bits = and();
+            while (accept("OR"))
+                bits.or(and());
+            return bits;
+        }
+
+        private BitSet and() {
+            final BitSet bits = not();
+            while (accept("AND"))
+                bits.and(not());
+            return bits;
+        }
+
+        private BitSet not() {
+            if (accept("NOT")) {
+                final BitSet bits = (BitSet)live.clone();
+                bits.andNot(not());
+                return bits;
+            }
+            return atom();
+        }
+
+        private BitSet atom() {
+            if (accept("(")) {
+                final BitSet bits = or();
+                if (!accept(")"))
+                    throw new RequestException("Missing ')' in filter");
+                return bits;
+            }
+
+            if (pos == tokens.size())
+                throw new RequestException("Unexpected end of filter");
+
+            final String facet = tokens.get(pos++);
+            if (!isWord(facet) || facet.matches("(?i)AND|OR|NOT"))
+                throw new RequestException("Unexpected '" + facet + "' in filter");
+            if (!taxonomy.contains(facet))
+                throw new RequestException(404, "No such facet in taxonomy: " + facet);
+
+            String text = null;
+            if (accept("=")) {
+                if (pos == tokens.size())
+                    throw new RequestException("Missing text after '" + facet + "='");
+                text = tokens.get(pos++);
+                if (text.startsWith("\""))
+                    text = text.substring(1, text.length() - 1);
+                else if (!isWord(text))
+                    throw new RequestException("Unexpected '" + text + "' in filter");
+            }
+
+            final BitSet bits = new BitSet();
+            for (String type : taxonomy.subtree(facet)) {
+                final BitSet matching = text == null ? types.get(type) : values.get(type + ":" + text);
+                if (matching != null)
+                    bits.or(matching);
+            }
+            bits.and(live);
+            return bits;
+        }
+
+        private boolean isWord(String token) {
+            return !token.startsWith("\"") && !"(".equals(token) &&
+                !")".equals(token) && !"=".equals(token);
+        }
+    }
+}
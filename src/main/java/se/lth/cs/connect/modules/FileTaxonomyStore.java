@@ -0,0 +1,161 @@
+package se.lth.cs.connect.modules;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import ro.pippo.core.PippoSettings;
+import ro.pippo.core.Response;
+import ro.pippo.core.route.RouteContext;
+import se.lth.cs.connect.RequestException;
+
+/**
+ * Keep taxonomies as json files on the local file system.
+ *
+ *  /txdb
+ *      /projects
+ *               /<id>.json
+ *      /collections
+ *               /<id>.json
+ *
+ * Only usable when a single backend instance is running, since every
+ * instance would have its own copy of the files.
+ */
+public class FileTaxonomyStore extends TaxonomyStore {
+    /* Precompressed copies are kept next to the original, i.e. c-1.json.gz */
+    static final String GZIP_SUFFIX = ".gz";
+
+    private String root;
+
+    @Override
+    public void configure(PippoSettings props) {
+        root = props.getString("connect.taxonomy.txdb", "./txdb");
+    }
+
+    private File file(String key) {
+        return new File(root + "/" + key + ".json");
+    }
+
+    private File gzipped(String key) {
+        return new File(root + "/" + key + ".json" + GZIP_SUFFIX);
+    }
+
+    /**
+     * Keys of all documents in the store.
+     */
+    List<String> keys() {
+        final List<String> keys = new ArrayList<String>();
+        for (String dir : new String[]{ "projects", "collections" }) {
+            final File[] files = new File(root + "/" + dir).listFiles();
+            if (files == null)
+                continue;
+            for (File f : files) {
+                if (f.isFile() && f.getName().endsWith(".json"))
+                    keys.add(dir + "/" + f.getName().substring(0, f.getName().length() - 5));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public long revision(String key) {
+        final File file = file(key);
+        return file.isFile() ? file.lastModified() : -1;
+    }
+
+    @Override
+    public byte[] read(String key) {
+        try {
+            return Files.readAllBytes(file(key).toPath());
+        } catch (IOException e) {
+            // TODO: Detect type of IO exception: enoent, other
+            throw new RequestException(404, "No such taxonomy.");
+        }
+    }
+
+    @Override
+    public void write(String key, byte[] data) {
+        try {
+            final FileOutputStream fos = new FileOutputStream(file(key));
+            final BufferedOutputStream bos = new BufferedOutputStream(fos, 128*100);
+            bos.write(data);
+            bos.flush();
+            fos.close();
+
+            // Written after the original so that it is never older than it
+            final OutputStream gz = new GZIPOutputStream(
+                new FileOutputStream(gzipped(key)), 128*100);
+            gz.write(data);
+            gz.close();
+        } catch (IOException e) {
+            throw new RequestException("Error writing taxonomy to file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void rename(String from, String to) {
+        final File src = file(from);
+        final File gz = gzipped(from);
+        if (!src.renameTo(file(to))) {
+            write(to, read(from));
+            src.delete();
+        } else if (!gz.renameTo(gzipped(to))) {
+            write(to, read(to));
+        }
+        gz.delete();
+    }
+
+    @Override
+    public void delete(String key) {
+        file(key).delete();
+        gzipped(key).delete();
+    }
+
+    /**
+     * The file already is json, so the bytes are transferred from the file
+     * channel as they are. When the client accepts gzip, the precompressed
+     * copy is sent instead (unless it is missing or out of date).
+     */
+    @Override
+    public boolean transfer(String key, RouteContext rc, boolean acceptsGzip) {
+        final File original = file(key);
+        final File compressed = gzipped(key);
+        final boolean gzip = acceptsGzip && compressed.isFile() &&
+            compressed.lastModified() >= original.lastModified();
+
+        final File source = gzip ? compressed : original;
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final Response response = rc.getResponse();
+
+            response.json();
+            response.header("Vary", "Accept-Encoding");
+            if (gzip)
+                response.header("Content-Encoding", "gzip");
+            response.contentLength(size);
+
+            final OutputStream os = response.getOutputStream();
+            final WritableByteChannel out = Channels.newChannel(os);
+            long position = 0;
+            while (position < size)
+                position += channel.transferTo(position, size - position, out);
+            os.flush();
+        } catch (NoSuchFileException e) {
+            throw new RequestException(404, "No such taxonomy.");
+        } catch (IOException e) {
+            throw new RequestException(500, "Error reading taxonomy: " + e.getMessage());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+package se.lth.cs.connect.modules;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running work that is started by a request and polled for progress
+ * by later requests.
+ *
+ * Jobs run on a small shared pool, in submission order per thread. Only the
+ * latest KEEP jobs are remembered.
+ *
+ * Jobs live in memory and are lost when the backend stops, unlike the
+ * journaled events of EventQueue. Everything run as a job can be run again
+ * by the client who started it: reclassifying is a no-op for entities that
+ * were already moved, and a merge only adds what the target still lacks, so
+ * merging the source into an interrupted fork completes it. Deletions are
+ * queued as events instead, since the user who asked for them may no longer
+ * be able to ask again.
+ */
+public class Jobs {
+    private static final int THREADS = 2;
+    private static final int KEEP = 1000;
+
+    public static final String QUEUED = "queued", RUNNING = "running",
+        DONE = "done", FAILED = "failed";
+
+    public interface Work {
+        void run(Job job) throws Exception;
+    }
+
+    public static class Job {
+        public long id;
+        public String kind, state;
+        public long total, done;
+        public String error;
+        public long created, started, finished;
+
+        /* What the job belongs to, e.g. "collection/55", for access checks */
+        String scope;
+
+        /**
+         * Report that n more of total units are done.
+         */
+        public synchronized void progress(long n) {
+            done += n;
+        }
+
+        synchronized Job copy() {
+            final Job c = new Job();
+            c.id = id;
+            c.kind = kind;
+            c.state = state;
+            c.total = total;
+            c.done = done;
+            c.error = error;
+            c.created = created;
+            c.started = started;
+            c.finished = finished;
+            c.scope = scope;
+            return c;
+        }
+
+        public boolean belongsTo(String scope) {
+            return scope.equals(this.scope);
+        }
+    }
+
+    private static final AtomicLong ids = new AtomicLong();
+    private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+
+    private static final Map<Long, Job> jobs = new LinkedHashMap<Long, Job>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Job> eldest) {
+            return size() > KEEP;
+        }
+    };
+
+    public static Job submit(String kind, String scope, long total, Work work) {
+        final Job job = new Job();
+        job.id = ids.incrementAndGet();
+        job.kind = kind;
+        job.scope = scope;
+        job.total = total;
+        job.state = QUEUED;
+        job.created = System.currentTimeMillis();
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+
+        pool.execute(() -> {
+            final long start = System.nanoTime();
+            synchronized (job) {
+                job.state = RUNNING;
+                job.started = System.currentTimeMillis();
+            }
+            try {
+                work.run(job);
+                synchronized (job) {
+                    job.state = DONE;
+                }
+            } catch (Exception e) {
+                System.err.println("Jobs: " + kind + " " + job.id + ": " + e.getMessage());
+                synchronized (job) {
+                    job.state = FAILED;
+                    job.error = e.getMessage();
+                }
+            } finally {
+                synchronized (job) {
+                    job.finished = System.currentTimeMillis();
+                }
+                Metrics.timer("jobs." + kind).since(start);
+            }
+        });
+        return job.copy();
+    }
+
+    /**
+     * Snapshot of a job, or null if it is unknown or forgotten.
+     */
+    public static Job get(long id) {
+        final Job job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+        }
+        return job == null ? null : job.copy();
+    }
+}
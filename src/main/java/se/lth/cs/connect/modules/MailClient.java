@@ -1,8 +1,29 @@
 package se.lth.cs.connect.modules;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import ro.pippo.core.PippoSettings;
 
 public abstract class MailClient {
+	/* One sender, so that the mail server isn't flooded */
+	private static final ExecutorService outbox = Executors.newSingleThreadExecutor();
+
 	public abstract void configure(PippoSettings conf);
 	public abstract boolean sendEmail(String to, String subject, String html);
+
+	/**
+	 * Send an email in the background, for requests that shouldn't wait on
+	 * the mail server. Failures are only logged.
+	 */
+	public void sendLater(String to, String subject, String html) {
+		outbox.execute(() -> {
+			try {
+				if (!sendEmail(to, subject, html))
+					System.err.println("MailClient: could not send to " + to);
+			} catch (Exception e) {
+				System.err.println("MailClient: " + to + ": " + e.getMessage());
+			}
+		});
+	}
 }
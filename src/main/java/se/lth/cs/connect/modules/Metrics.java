@@ -0,0 +1,87 @@
+package se.lth.cs.connect.modules;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency timers for routes and background work, reported by
+ * GET /v1/admin/metrics.
+ *
+ * A timer keeps totals since startup and the last SAMPLES durations, which
+ * the percentiles are computed from.
+ */
+public class Metrics {
+    private static final int SAMPLES = 1024;
+
+    private static final ConcurrentHashMap<String, Timer> timers =
+        new ConcurrentHashMap<String, Timer>();
+
+    public static class Timer {
+        private final long[] samples = new long[SAMPLES];
+        private long count, total, max;
+
+        public synchronized void record(long nanos) {
+            samples[(int)(count % SAMPLES)] = nanos;
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * Record the time since System.nanoTime() returned start.
+         */
+        public void since(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public synchronized Snapshot snapshot() {
+            final long[] sorted = Arrays.copyOf(samples, (int)Math.min(count, SAMPLES));
+            Arrays.sort(sorted);
+
+            final Snapshot s = new Snapshot();
+            s.count = count;
+            s.meanMs = count == 0 ? 0 : millis(total / count);
+            s.maxMs = millis(max);
+            s.p50Ms = millis(percentile(sorted, 0.50));
+            s.p95Ms = millis(percentile(sorted, 0.95));
+            s.p99Ms = millis(percentile(sorted, 0.99));
+            return s;
+        }
+    }
+
+    public static class Snapshot {
+        public long count;
+        public double meanMs, p50Ms, p95Ms, p99Ms, maxMs;
+    }
+
+    public static Timer timer(String name) {
+        Timer t = timers.get(name);
+        if (t == null) {
+            timers.putIfAbsent(name, new Timer());
+            t = timers.get(name);
+        }
+        return t;
+    }
+
+    /**
+     * Snapshots of all timers, by name.
+     */
+    public static Map<String, Snapshot> snapshot() {
+        final Map<String, Snapshot> all = new TreeMap<String, Snapshot>();
+        for (Map.Entry<String, Timer> t : timers.entrySet())
+            all.put(t.getKey(), t.getValue().snapshot());
+        return all;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[(int)Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
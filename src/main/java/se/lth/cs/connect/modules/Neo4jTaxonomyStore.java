@@ -0,0 +1,169 @@
+package se.lth.cs.connect.modules;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.api.IClause;
+import iot.jcypher.query.factories.clause.DO;
+import iot.jcypher.query.factories.clause.MATCH;
+import iot.jcypher.query.factories.clause.MERGE;
+import iot.jcypher.query.factories.clause.NATIVE;
+import iot.jcypher.query.factories.clause.RETURN;
+import iot.jcypher.query.values.JcBoolean;
+import iot.jcypher.query.values.JcNode;
+import iot.jcypher.query.values.JcNumber;
+import iot.jcypher.query.values.JcString;
+import ro.pippo.core.PippoSettings;
+import se.lth.cs.connect.RequestException;
+
+/**
+ * Keep taxonomies in neo4j, as (:taxonomy {key, json, revision}) nodes, so
+ * that several backend instances can share them.
+ *
+ * The documents of the file store (i.e. the bundled txdb folder) are
+ * imported once, by the first instance that starts against the database,
+ * which leaves a (:taxonomy_seed) node behind. Documents that are deleted
+ * later stay deleted.
+ */
+public class Neo4jTaxonomyStore extends TaxonomyStore {
+    // Timestamp based, so that a document that is deleted and created again
+    // never gets a revision that some other instance still has cached.
+    private static final String NEXT_REVISION =
+        "SET t.revision = CASE WHEN timestamp() > coalesce(t.revision, 0) " +
+        "THEN timestamp() ELSE t.revision + 1 END";
+
+    @Override
+    public void configure(PippoSettings props) {
+        final FileTaxonomyStore files = new FileTaxonomyStore();
+        files.configure(props);
+
+        IDBAccess db = Database.access();
+        try {
+            Database.query(db, new IClause[]{
+                NATIVE.cypher("CREATE CONSTRAINT ON (t:taxonomy) ASSERT t.key IS UNIQUE")
+            });
+            seed(db, files);
+        } finally {
+            db.close();
+        }
+    }
+
+    /* Import the file store unless some instance already did */
+    private static void seed(IDBAccess db, FileTaxonomyStore files) {
+        final boolean seeded = Database.execute(db, Collections.singletonList(
+            new Database.Statement("MATCH (s:taxonomy_seed) RETURN true AS seeded")))
+            .get(0).resultOf(new JcBoolean("seeded")).size() > 0;
+        if (seeded)
+            return;
+
+        // Documents that exist already are kept as they are
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        for (String key : files.keys()) {
+            statements.add(new Database.Statement(
+                "MERGE (t:taxonomy {key: {key}}) " +
+                "ON CREATE SET t.json = {json}, t.revision = timestamp()")
+                .param("key", key)
+                .param("json", new String(files.read(key), StandardCharsets.UTF_8)));
+        }
+        statements.add(new Database.Statement(
+            "MERGE (s:taxonomy_seed) ON CREATE SET s.created = timestamp()"));
+        Database.execute(db, statements);
+    }
+
+    @Override
+    public long revision(String key) {
+        final JcNode tx = new JcNode("t");
+        final JcNumber revision = new JcNumber("r");
+
+        List<java.math.BigDecimal> found;
+        IDBAccess db = Database.access();
+        try {
+            found = Database.query(db, new IClause[]{
+                MATCH.node(tx).label("taxonomy").property("key").value(key),
+                RETURN.value(tx.property("revision")).AS(revision)
+            }).resultOf(revision);
+        } finally {
+            db.close();
+        }
+
+        return found.size() > 0 ? found.get(0).longValue() : -1;
+    }
+
+    @Override
+    public byte[] read(String key) {
+        final JcNode tx = new JcNode("t");
+        final JcString json = new JcString("j");
+
+        List<String> found;
+        IDBAccess db = Database.access();
+        try {
+            found = Database.query(db, new IClause[]{
+                MATCH.node(tx).label("taxonomy").property("key").value(key),
+                RETURN.value(tx.property("json")).AS(json)
+            }).resultOf(json);
+        } finally {
+            db.close();
+        }
+
+        if (found.size() == 0)
+            throw new RequestException(404, "No such taxonomy.");
+        return found.get(0).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(String key, byte[] data) {
+        final JcNode tx = new JcNode("t");
+
+        IDBAccess db = Database.access();
+        try {
+            Database.query(db, new IClause[]{
+                MERGE.node(tx).label("taxonomy").property("key").value(key),
+                DO.SET(tx.property("json")).to(new String(data, StandardCharsets.UTF_8)),
+                NATIVE.cypher(NEXT_REVISION)
+            });
+        } finally {
+            db.close();
+        }
+    }
+
+    @Override
+    public void rename(String from, String to) {
+        final List<JcQueryResult> res;
+        IDBAccess db = Database.access();
+        try {
+            res = Database.execute(db, Collections.singletonList(new Database.Statement(
+                "MATCH (t:taxonomy {key: {from}}) " +
+                "OPTIONAL MATCH (o:taxonomy {key: {to}}) " +
+                "WITH t, o WHERE o IS NULL " +
+                "SET t.key = {to} " +
+                NEXT_REVISION + " " +
+                "RETURN true AS renamed")
+                .param("from", from)
+                .param("to", to)));
+        } finally {
+            db.close();
+        }
+
+        if (res.get(0).resultOf(new JcBoolean("renamed")).isEmpty() && revision(to) >= 0)
+            throw new RequestException(400, "A taxonomy named " + to + " already exists.");
+    }
+
+    @Override
+    public void delete(String key) {
+        final JcNode tx = new JcNode("t");
+
+        IDBAccess db = Database.access();
+        try {
+            Database.query(db, new IClause[]{
+                MATCH.node(tx).label("taxonomy").property("key").value(key),
+                DO.DETACH_DELETE(tx)
+            });
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package se.lth.cs.connect.modules;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Supplier;
+
+import ro.pippo.core.PippoSettings;
+import ro.pippo.core.route.RouteContext;
+
+/**
+ * Serialized JSON responses of collection reads, kept until the collection
+ * changes.
+ *
+ * Collections carry a version (c.version, see ChangeFeed) that is bumped by
+ * every write to the collection, its members or its entries. A response is
+ * cached per (collection, endpoint) together with the version it was
+ * computed for, and is only served while that is still the version of the
+ * collection. Responses of older versions are replaced, not kept around.
+ *
+ * The cache is bounded by the (approximate) number of bytes of cached JSON
+ * and evicts the least recently used responses first.
+ */
+public class ResponseCache {
+    private static final long DEFAULT_BYTES = 32L * 1024 * 1024;
+
+    /* Rough per-response overhead of the map entry, key and wrapper */
+    private static final long OVERHEAD = 128;
+
+    private static long maxBytes = DEFAULT_BYTES;
+
+    /* Everything below is guarded by the class lock */
+    private static long bytes, hits, misses, evictions;
+    private static final LinkedHashMap<String, Cached> responses =
+        new LinkedHashMap<String, Cached>(256, 0.75f, true);
+
+    private static class Cached {
+        final long version;
+        final String json;
+
+        Cached(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
+
+        long size() {
+            return OVERHEAD + 2L * json.length();
+        }
+    }
+
+    public static class Stats {
+        public long entries, bytes, maxBytes;
+        public long hits, misses, evictions;
+        public double hitRatio;
+    }
+
+    public static synchronized void configure(PippoSettings props) {
+        maxBytes = props.getLong("connect.cache.bytes", DEFAULT_BYTES);
+        clear();
+    }
+
+    /**
+     * Send the cached response for endpoint of a collection at version, or
+     * compute, cache and send it.
+     */
+    public static void send(RouteContext rc, long collection, long version,
+            String endpoint, Supplier<Object> compute) {
+        final String key = collection + "/" + endpoint;
+        String json = get(key, version);
+        if (json == null) {
+            final long start = System.nanoTime();
+            json = rc.getApplication().getContentTypeEngine("application/json")
+                .toString(compute.get());
+            put(key, version, json);
+            Metrics.timer("collection." + endpoint).since(start);
+        }
+        rc.json().send(json);
+    }
+
+    private static synchronized String get(String key, long version) {
+        final Cached c = responses.get(key);
+        if (c == null || c.version != version) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return c.json;
+    }
+
+    private static synchronized void put(String key, long version, String json) {
+        final Cached c = new Cached(version, json);
+        if (c.size() > maxBytes)
+            return;
+
+        // A slower request may finish after a write and a newer response
+        final Cached old = responses.get(key);
+        if (old != null && old.version > version)
+            return;
+        if (old != null)
+            bytes -= old.size();
+
+        responses.put(key, c);
+        bytes += c.size();
+
+        final Iterator<Cached> lru = responses.values().iterator();
+        while (bytes > maxBytes && lru.hasNext()) {
+            bytes -= lru.next().size();
+            lru.remove();
+            evictions++;
+        }
+    }
+
+    public static synchronized Stats stats() {
+        final Stats s = new Stats();
+        s.entries = responses.size();
+        s.bytes = bytes;
+        s.maxBytes = maxBytes;
+        s.hits = hits;
+        s.misses = misses;
+        s.evictions = evictions;
+        s.hitRatio = hits + misses == 0 ? 0 : Math.round(1000.0 * hits / (hits + misses)) / 1000.0;
+        return s;
+    }
+
+    public static synchronized void clear() {
+        responses.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,297 @@
+package se.lth.cs.connect.modules;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.queryParser.MultiFieldQueryParser;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.Version;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.graph.GrNode;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcCollection;
+import iot.jcypher.query.values.JcNode;
+import iot.jcypher.query.values.JcNumber;
+import se.lth.cs.connect.Graph;
+import se.lth.cs.connect.RequestException;
+
+/**
+ * In-memory full text index over accepted entries: description, reference,
+ * doi, contact and the text of the facets they are classified with.
+ *
+ * The index follows the change sequence (see ChangeFeed) rather than being
+ * told about writes: every write path in Entry, Collection and the delete
+ * events already stamps what it touches, so catching up means re-reading
+ * entries stamped after the last seen sequence number, and dropping those
+ * that have been deleted or are pending. This also picks up writes made by
+ * other backend instances.
+ *
+ * The index is built when the backend starts, refreshed in the background
+ * and brought up to date before every search.
+ */
+public class SearchIndex {
+    private static final Version VERSION = Version.LUCENE_36;
+    private static final String[] FIELDS = {
+        "description", "reference", "doi", "contact", "facet"
+    };
+
+    /* Entries are read from the database in batches of this size */
+    private static final int BATCH = 500;
+
+    private static SearchIndex instance;
+
+    private final Analyzer analyzer = new StandardAnalyzer(VERSION);
+    private final IndexWriter writer;
+    private final SearcherManager searchers;
+    private final Map<String, Float> boosts = new HashMap<String, Float>();
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor();
+
+    /* Sequence number the index is up to date with, -1 before it is built */
+    private long seq = -1;
+
+    public static class Hit {
+        public long id;
+        public float score;
+    }
+
+    public static class Hits {
+        public int total;
+        public Hit[] hits;
+    }
+
+    private SearchIndex() throws IOException {
+        writer = new IndexWriter(new RAMDirectory(),
+            new IndexWriterConfig(VERSION, analyzer));
+        searchers = new SearcherManager(writer, true, new SearcherFactory());
+
+        boosts.put("description", 2.0f);
+        boosts.put("reference", 2.0f);
+        boosts.put("doi", 1.0f);
+        boosts.put("contact", 0.5f);
+        boosts.put("facet", 1.0f);
+    }
+
+    public static synchronized SearchIndex get() {
+        if (instance == null) {
+            try {
+                instance = new SearchIndex();
+            } catch (IOException e) {
+                throw new RequestException(500, "Could not create search index: " + e.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Build the index in the background and keep it up to date.
+     */
+    public void start(long refreshSeconds) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            IDBAccess db = Database.access();
+            try {
+                refresh(db);
+            } catch (Exception e) {
+                System.err.println("SearchIndex.refresh: " + e.getMessage());
+            } finally {
+                db.close();
+            }
+        }, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Index everything stamped after the last refresh.
+     */
+    public synchronized void refresh(IDBAccess db) {
+        // Cheap check first: nothing has been stamped since the last refresh
+        if (seq >= 0 && ChangeFeed.current(db) == seq)
+            return;
+
+        // Removals this far back were pruned, start over
+        if (seq >= 0 && seq < ChangeFeed.pruned(db)) {
+            try {
+                writer.deleteAll();
+            } catch (IOException e) {
+                throw new RequestException(500, "Error clearing search index: " + e.getMessage());
+            }
+            seq = -1;
+        }
+
+        final long start = System.nanoTime();
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        statements.add(ChangeFeed.sequence());
+        if (seq < 0) {
+            statements.add(new Database.Statement(
+                "MATCH (e:entry) RETURN id(e) AS id"));
+        } else {
+            statements.add(new Database.Statement(
+                "MATCH (e:entry) WHERE e.seq > {since} RETURN id(e) AS id " +
+                "UNION MATCH (:collection)-[ce:CONTAINS]->(e:entry) " +
+                    "WHERE ce.seq > {since} RETURN id(e) AS id " +
+                "UNION MATCH (t:tombstone) WHERE t.seq > {since} RETURN t.entry AS id")
+                .param("since", seq));
+        }
+
+        final List<JcQueryResult> res = Database.execute(db, statements);
+        final long next = res.get(0).resultOf(new JcNumber("seq")).get(0).longValue();
+
+        final Set<Long> dirty = new LinkedHashSet<Long>();
+        for (BigDecimal id : res.get(1).resultOf(new JcNumber("id"))) {
+            if (id != null)
+                dirty.add(id.longValue());
+        }
+
+        final List<Long> ids = new ArrayList<Long>(dirty);
+        try {
+            for (int i = 0; i < ids.size(); i += BATCH)
+                reindex(db, ids.subList(i, Math.min(ids.size(), i + BATCH)));
+            writer.commit();
+            searchers.maybeRefresh();
+        } catch (IOException e) {
+            throw new RequestException(500, "Error updating search index: " + e.getMessage());
+        }
+
+        seq = next;
+        Metrics.timer("search.refresh").since(start);
+    }
+
+    /* Replace the documents of some entries; removed or pending entries are only deleted */
+    private void reindex(IDBAccess db, List<Long> ids) throws IOException {
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (e:entry) WHERE id(e) IN {ids} AND NOT has(e.pending) " +
+                "OPTIONAL MATCH (c:collection)-[:CONTAINS]->(e) " +
+                "WITH e, collect(DISTINCT id(c)) AS collections " +
+                "OPTIONAL MATCH (e)-->(f:facet) " +
+                "RETURN e, collections, collect(f.text) AS facets")
+                .param("ids", ids))).get(0);
+
+        for (Long id : ids)
+            writer.deleteDocuments(new Term("id", id.toString()));
+
+        final List<GrNode> entries = res.resultOf(new JcNode("e"));
+        final List<List<?>> collections = res.resultOf(new JcCollection("collections"));
+        final List<List<?>> facets = res.resultOf(new JcCollection("facets"));
+        for (int i = 0; i < entries.size(); i++) {
+            final Graph.Node e = new Graph.Node(entries.get(i));
+            final Document doc = new Document();
+            doc.add(new Field("id", Long.toString(e.id), Field.Store.YES, Field.Index.NOT_ANALYZED));
+            for (Object c : collections.get(i))
+                doc.add(new Field("collection", c.toString(), Field.Store.NO, Field.Index.NOT_ANALYZED));
+
+            text(doc, "description", e.description);
+            text(doc, "reference", e.reference);
+            text(doc, "doi", e.doi);
+            text(doc, "contact", e.contact);
+            for (Object f : facets.get(i))
+                text(doc, "facet", f == null ? null : f.toString());
+
+            writer.addDocument(doc);
+        }
+    }
+
+    private static void text(Document doc, String field, String value) {
+        if (value != null && value.length() > 0)
+            doc.add(new Field(field, value, Field.Store.NO, Field.Index.ANALYZED));
+    }
+
+    /**
+     * Ranked search among entries in some collections. Returns at most limit
+     * hits, skipping the first offset.
+     */
+    public Hits search(String q, List<Long> collections, int offset, int limit) {
+        final QueryParser parser = new MultiFieldQueryParser(VERSION, FIELDS, analyzer, boosts);
+        parser.setDefaultOperator(QueryParser.AND_OPERATOR);
+
+        final Query query;
+        try {
+            query = parser.parse(q);
+        } catch (ParseException e) {
+            throw new RequestException("Invalid query: " + e.getMessage().split("\n")[0]);
+        }
+
+        final Hits hits = new Hits();
+        try {
+            final IndexSearcher searcher = searchers.acquire();
+            try {
+                final TopDocs top = searcher.search(query,
+                    new CollectionFilter(collections), offset + limit);
+                hits.total = top.totalHits;
+
+                final ScoreDoc[] docs = top.scoreDocs;
+                final int n = Math.max(0, docs.length - offset);
+                hits.hits = new Hit[n];
+                for (int i = 0; i < n; i++) {
+                    final ScoreDoc sd = docs[offset + i];
+                    hits.hits[i] = new Hit();
+                    hits.hits[i].id = Long.parseLong(searcher.doc(sd.doc).get("id"));
+                    hits.hits[i].score = sd.score;
+                }
+            } finally {
+                searchers.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new RequestException(500, "Error searching: " + e.getMessage());
+        }
+        return hits;
+    }
+
+    /**
+     * Documents contained in any of the given collections.
+     */
+    private static class CollectionFilter extends Filter {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Long> collections;
+
+        CollectionFilter(List<Long> collections) {
+            this.collections = collections;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+            final OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+            for (Long c : collections) {
+                final TermDocs docs = reader.termDocs(new Term("collection", c.toString()));
+                try {
+                    while (docs.next())
+                        bits.set(docs.doc());
+                } finally {
+                    docs.close();
+                }
+            }
+            return bits;
+        }
+    }
+}
@@ -1,35 +1,39 @@
 package se.lth.cs.connect.modules;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import iot.jcypher.query.JcQueryResult;
-import iot.jcypher.query.api.IClause;
-import iot.jcypher.query.factories.clause.MATCH;
-import iot.jcypher.query.factories.clause.RETURN;
-import iot.jcypher.query.factories.clause.WHERE;
-import iot.jcypher.query.values.JcNode;
-import iot.jcypher.query.values.JcNumber;
 import ro.pippo.core.PippoSettings;
+import ro.pippo.core.Response;
+import ro.pippo.core.route.RouteContext;
 import se.lth.cs.connect.RequestException;
 
 
 /**
 * Update taxonomy.
+*
+* Taxonomies are kept in a TaxonomyStore, selected by connect.taxonomy.store:
+*
+*   file  - json files under connect.taxonomy.txdb (default)
+*   neo4j - taxonomy nodes in the database, shared by all backend instances
+*
+* Reads go through a local cache which is checked against the revision of
+* the stored document, so writes made by other instances are picked up.
 */
 public class TaxonomyDB {
-    static String projectsPath;
-    static String collectionsPath;
+    private static TaxonomyStore store;
+
+    private static final ConcurrentHashMap<String, Cached> cache =
+        new ConcurrentHashMap<String, Cached>();
 
     public static class Facet {
     	public String name, id, parent, desc;
@@ -45,19 +49,48 @@ public class TaxonomyDB {
     	}
     }
 
-    /*
-     * /txdb
-     *     /projects
-     *              /<id>.json
-     *     /collections
-     *              /<id>.json
+    /**
+     * A stored document at some revision. Parsed and compressed forms are
+     * created on demand.
      */
+    private static class Cached {
+        final long revision;
+        final byte[] json;
+        byte[] gzip;
+        Taxonomy taxonomy;
+
+        Cached(long revision, byte[] json) {
+            this.revision = revision;
+            this.json = json;
+        }
 
-    public static void configure(PippoSettings props) {
-        String dbPath = props.getString("connect.taxonomy.txdb", "./txdb");
+        synchronized Taxonomy taxonomy() throws IOException {
+            if (taxonomy == null)
+                taxonomy = (new ObjectMapper()).readValue(json, Taxonomy.class);
+            return taxonomy;
+        }
 
-        projectsPath = dbPath + "/projects";
-        collectionsPath = dbPath + "/collections";
+        synchronized byte[] gzip() throws IOException {
+            if (gzip == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4);
+                OutputStream gz = new GZIPOutputStream(bytes);
+                gz.write(json);
+                gz.close();
+                gzip = bytes.toByteArray();
+            }
+            return gzip;
+        }
+    }
+
+    public static void configure(PippoSettings props) {
+        final String type = props.getString("connect.taxonomy.store", "file");
+        if ("neo4j".equals(type))
+            store = new Neo4jTaxonomyStore();
+        else
+            store = new FileTaxonomyStore();
+
+        store.configure(props);
+        cache.clear();
     }
 
     /**
@@ -70,52 +103,102 @@ public class TaxonomyDB {
     }
 
     public static String collection(long collectionId) {
-        return collectionsPath + "/" + "c-" + collectionId + ".json";
+        return "collections/c-" + collectionId;
     }
 
     public static String project(String pname) {
         if (!checkPath(pname))
             throw new RequestException(500, "Invalid project name");
-        return projectsPath + "/" + pname + ".json";
+        return "projects/" + pname;
     }
 
-    public static Taxonomy taxonomyOf(String path) {
+    /**
+     * Get the cached document, reloading it if the stored revision differs.
+     */
+    private static Cached cached(String key) {
+        final long revision = store.revision(key);
+        if (revision < 0) {
+            cache.remove(key);
+            throw new RequestException(404, "No such taxonomy.");
+        }
+
+        Cached entry = cache.get(key);
+        if (entry == null || entry.revision != revision) {
+            entry = new Cached(revision, store.read(key));
+            cache.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Parsed taxonomy, or null if it is missing or broken. The returned
+     * object is shared between requests and must not be modified.
+     */
+    public static Taxonomy taxonomyOf(String key) {
     	try {
-    		return (new ObjectMapper()).readValue(read(path), Taxonomy.class);
+    		return cached(key).taxonomy();
     	} catch (Exception e) {
     		System.err.println("TaxonomyDB.taxonomyOf: " + e.getMessage());
     		return null;
     	}
     }
 
-    public static void write(String txPath, String serialized) {
-        try {
-            final FileOutputStream fos = new FileOutputStream(new File(txPath));
-            final BufferedOutputStream bos = new BufferedOutputStream(fos, 128*100);
-            bos.write(serialized.getBytes(Charset.forName("UTF-8")));
-            bos.flush();
-            fos.close();
-        } catch (IOException e) {
-            throw new RequestException("Error writing taxonomy to file: " + e.getMessage());
-        }
+    public static void write(String key, String serialized) {
+        store.write(key, serialized.getBytes(StandardCharsets.UTF_8));
+        cache.remove(key);
     }
 
-    public static void update(String path, Taxonomy taxonomy) throws JsonProcessingException {
+    public static void update(String key, Taxonomy taxonomy) throws JsonProcessingException {
     	ObjectMapper mapper = new ObjectMapper();
-    	write(path, mapper.writeValueAsString(taxonomy));
+    	write(key, mapper.writeValueAsString(taxonomy));
     }
 
-    public static String read(String path) {
-        final File file = new File(path);
-    	try {
-        	char[] data = new char[(int) file.length()];
-        	final BufferedReader reader = new BufferedReader(new FileReader(file));
-        	reader.read(data);
-        	reader.close();
-        	return String.valueOf(data);
+    public static String read(String key) {
+        return new String(cached(key).json, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Send the taxonomy as the response body, gzipped if the client accepts
+     * it. Stores that can send the document directly (the file store) do
+     * so, otherwise the cached bytes are sent.
+     */
+    public static void send(String key, RouteContext rc) {
+        final boolean gzip = acceptsGzip(rc);
+        if (store.transfer(key, rc, gzip))
+            return;
+
+        try {
+            final Cached entry = cached(key);
+            final byte[] body = gzip ? entry.gzip() : entry.json;
+            final Response response = rc.getResponse();
+
+            response.json();
+            response.header("Vary", "Accept-Encoding");
+            if (gzip)
+                response.header("Content-Encoding", "gzip");
+            response.contentLength(body.length);
+
+            final OutputStream os = response.getOutputStream();
+            os.write(body);
+            os.flush();
         } catch (IOException e) {
-            // TODO: Detect type of IO exception: enoent, other
-            throw new RequestException(404, "No such taxonomy.");
+            throw new RequestException(500, "Error sending taxonomy: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    public static void rename(String from, String to) {
+        store.rename(from, to);
+        cache.remove(from);
+        cache.remove(to);
+    }
+
+    public static void delete(String key) {
+        store.delete(key);
+        cache.remove(key);
+    }
+
+    static boolean acceptsGzip(RouteContext rc) {
+        final String accept = rc.getHeader("Accept-Encoding");
+        return accept != null && accept.toLowerCase().contains("gzip");
+    }
+}
@@ -0,0 +1,137 @@
+package se.lth.cs.connect.modules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.lth.cs.connect.modules.TaxonomyDB.Facet;
+import se.lth.cs.connect.modules.TaxonomyDB.Taxonomy;
+
+/**
+ * Parent/child structure of an effective taxonomy (a project taxonomy plus
+ * an optional collection extension), with the descendants of every facet
+ * precomputed.
+ *
+ * Facet ids are upper cased, since that is how they are stored as
+ * classification relation types.
+ *
+ * Indices are cached and rebuilt when TaxonomyDB hands out a different
+ * Taxonomy object, i.e. when the stored taxonomy has changed.
+ */
+public class TaxonomyIndex {
+    private static final ConcurrentHashMap<String, TaxonomyIndex> cache =
+        new ConcurrentHashMap<String, TaxonomyIndex>();
+
+    private final Taxonomy[] sources;
+    private final Map<String, Set<String>> subtrees;
+
+    private TaxonomyIndex(Taxonomy[] sources) {
+        this.sources = sources;
+
+        // parent --> children
+        Map<String, List<String>> children = new HashMap<String, List<String>>();
+        Set<String> facets = new HashSet<String>();
+        for (Taxonomy tx : sources) {
+            if (tx == null || tx.taxonomy == null)
+                continue;
+
+            for (Facet f : tx.taxonomy) {
+                if (f.id == null)
+                    continue;
+
+                final String id = f.id.toUpperCase();
+                final String parent = f.parent == null ? "ROOT" : f.parent.toUpperCase();
+                facets.add(id);
+                if (!children.containsKey(parent))
+                    children.put(parent, new ArrayList<String>());
+                children.get(parent).add(id);
+            }
+        }
+
+        subtrees = new HashMap<String, Set<String>>();
+        for (String id : facets)
+            subtrees.put(id, Collections.unmodifiableSet(collect(id, children)));
+    }
+
+    /* Facet and all of its descendants; guards against cycles */
+    private static Set<String> collect(String id, Map<String, List<String>> children) {
+        Set<String> found = new HashSet<String>();
+        List<String> stack = new ArrayList<String>();
+        stack.add(id);
+        while (!stack.isEmpty()) {
+            String next = stack.remove(stack.size() - 1);
+            if (!found.add(next))
+                continue;
+
+            List<String> below = children.get(next);
+            if (below != null)
+                stack.addAll(below);
+        }
+        return found;
+    }
+
+    private boolean isCurrent(Taxonomy[] current) {
+        if (current.length != sources.length)
+            return false;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != sources[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static TaxonomyIndex lookup(String key, Taxonomy[] current) {
+        TaxonomyIndex index = cache.get(key);
+        if (index == null || !index.isCurrent(current)) {
+            index = new TaxonomyIndex(current);
+            cache.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Index of the project taxonomy.
+     */
+    public static TaxonomyIndex ofProject(String project) {
+        return lookup(TaxonomyDB.project(project), new Taxonomy[]{
+            TaxonomyDB.taxonomyOf(TaxonomyDB.project(project))
+        });
+    }
+
+    /**
+     * Index of the project taxonomy extended by the collection taxonomy.
+     */
+    public static TaxonomyIndex ofCollection(String project, long collection) {
+        final String key = TaxonomyDB.collection(collection);
+        return lookup(key, new Taxonomy[]{
+            TaxonomyDB.taxonomyOf(TaxonomyDB.project(project)),
+            TaxonomyDB.taxonomyOf(key)
+        });
+    }
+
+    public boolean contains(String facetId) {
+        return facetId != null && subtrees.containsKey(facetId.toUpperCase());
+    }
+
+    /**
+     * All facet ids in the taxonomy.
+     */
+    public Set<String> facets() {
+        return Collections.unmodifiableSet(subtrees.keySet());
+    }
+
+    /**
+     * The facet and all of its descendants, or an empty set if the facet is
+     * not part of the taxonomy.
+     */
+    public Set<String> subtree(String facetId) {
+        if (!contains(facetId))
+            return Collections.emptySet();
+        return subtrees.get(facetId.toUpperCase());
+    }
+}
@@ -0,0 +1,39 @@
+package se.lth.cs.connect.modules;
+
+import ro.pippo.core.PippoSettings;
+import ro.pippo.core.route.RouteContext;
+
+/**
+ * Storage backend for TaxonomyDB. Taxonomies are json documents addressed by
+ * a key, such as "projects/serp" or "collections/c-12".
+ *
+ * Every write must change the revision of the document, because TaxonomyDB
+ * caches documents locally and only reloads them when the revision changes.
+ */
+public abstract class TaxonomyStore {
+	public abstract void configure(PippoSettings conf);
+
+	/**
+	 * Current revision of the document, or -1 if there is no such document.
+	 */
+	public abstract long revision(String key);
+
+	/**
+	 * Raw json of the document. Throws RequestException (404) if missing.
+	 */
+	public abstract byte[] read(String key);
+
+	public abstract void write(String key, byte[] json);
+
+	public abstract void rename(String from, String to);
+
+	public abstract void delete(String key);
+
+	/**
+	 * Send the document without going through the cache, if the store can
+	 * do that cheaper than sending cached bytes. Returns false otherwise.
+	 */
+	public boolean transfer(String key, RouteContext rc, boolean gzip) {
+		return false;
+	}
+}
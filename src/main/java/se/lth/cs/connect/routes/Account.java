@@ -22,6 +22,7 @@ import se.lth.cs.connect.Graph;
 import se.lth.cs.connect.RequestException;
 import se.lth.cs.connect.TrustLevel;
 import se.lth.cs.connect.events.DeleteAccountEvent;
+import se.lth.cs.connect.events.EventQueue;
 import se.lth.cs.connect.modules.AccountSystem;
 import se.lth.cs.connect.modules.Database;
 
@@ -305,8 +306,14 @@ public class Account extends BackendRouter {
         });
 
         // POST api.serp.se/v1/account/delete HTTP/1.1
+        // dryRun=true --> {user, deletedCollections, leftCollections, ...}
         POST("/delete", (rc) -> {
-            new DeleteAccountEvent(rc.getSession("email")).execute();
+            DeleteAccountEvent event = new DeleteAccountEvent(rc.getSession("email"));
+            if (rc.getParameter("dryRun").toBoolean(false)) {
+                rc.json().send(event.impact());
+                return;
+            }
+            EventQueue.submit(event);
             rc.resetSession();
             rc.getResponse().ok();
         });
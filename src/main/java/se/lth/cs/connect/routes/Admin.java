@@ -1,5 +1,6 @@
 package se.lth.cs.connect.routes;
 
+import java.util.Collections;
 import java.util.List;
 
 // required for building queries and interpreting query results
@@ -21,8 +22,16 @@ import se.lth.cs.connect.TrustLevel;
 import se.lth.cs.connect.events.DeleteAccountEvent;
 import se.lth.cs.connect.events.DeleteCollectionEvent;
 import se.lth.cs.connect.events.DeleteEntryEvent;
+import se.lth.cs.connect.events.EventQueue;
 import se.lth.cs.connect.modules.AccountSystem;
+import se.lth.cs.connect.modules.ChangeFeed;
 import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Metrics;
+import se.lth.cs.connect.modules.ResponseCache;
+import utils.DuplicateEntries;
+import utils.CollectionCounters;
+import utils.OrphanFacets;
+import utils.RelatedEntries;
 
 /**
  * Handles some admin-only routes, like trust modification.
@@ -77,6 +86,7 @@ public class Admin extends BackendRouter {
                 WHERE.valueOf(e.id()).EQUALS(entry),
                 DO.REMOVE(e.property("pending"))
             });
+            ChangeFeed.touch(rc.getLocal("db"), Collections.singletonList((long)entry));
             rc.getResponse().ok();
         });
 
@@ -84,14 +94,10 @@ public class Admin extends BackendRouter {
             if (rc.getParameter("entry").isEmpty())
                 throw new RequestException("Must provide entry parameter");
 
-            int entry = rc.getParameter("entry").toInt();
+            long entry = rc.getParameter("entry").toLong();
 
-            final JcNode e = new JcNode("e");
-            Database.query(rc.getLocal("db"), new IClause[]{
-                MATCH.node(e).label("entry"),
-                WHERE.valueOf(e.id()).EQUALS(entry),
-                DO.DETACH_DELETE(e)
-            });
+            Database.execute(rc.getLocal("db"),
+                DeleteEntryEvent.statements(Collections.singletonList(entry)));
             rc.getResponse().ok();
         });
 
@@ -100,8 +106,12 @@ public class Admin extends BackendRouter {
                 throw new RequestException("Must provide collection parameter");
 
             int id = rc.getParameter("id").toInt();
-            new DeleteCollectionEvent(id).execute();
-            rc.getResponse().ok();
+            DeleteCollectionEvent event = new DeleteCollectionEvent(id);
+            if (rc.getParameter("dryRun").toBoolean(false)) {
+                rc.json().send(event.impact());
+                return;
+            }
+            rc.status(202).json().send(EventQueue.submit(event));
         });
         
         GET("/collections-owned-by", (rc) -> {
@@ -130,8 +140,20 @@ public class Admin extends BackendRouter {
         		throw new RequestException("must provide an user email parameter");
 
         	String user = rc.getParameter("email").toString();
-            new DeleteAccountEvent(user).execute();
-        	rc.getResponse().ok();
+            DeleteAccountEvent event = new DeleteAccountEvent(user);
+            if (rc.getParameter("dryRun").toBoolean(false)) {
+                rc.json().send(event.impact());
+                return;
+            }
+            rc.status(202).json().send(EventQueue.submit(event));
+        });
+
+        // GET api.serp.se/v1/admin/jobs/7 --> {id: 7, kind: "delete-account", state: "running", ...}
+        GET("/jobs/{id}", (rc) -> {
+            final EventQueue.Job job = EventQueue.get(rc.getParameter("id").toLong(-1));
+            if (job == null)
+                throw new RequestException(404, "No such job.");
+            rc.json().send(job);
         });
 
         // POST api.serp.se/v1/admin/delete-entry
@@ -189,6 +211,47 @@ public class Admin extends BackendRouter {
         	rc.json().send(Graph.Collection.fromList(allColls));
         });
 
+        // GET api.serp.se/v1/admin/duplicates --> {groups: [...], merged: 0}
+        GET("/duplicates", (rc) -> {
+            rc.json().send(DuplicateEntries.report(rc.getLocal("db")));
+        });
+
+        // POST api.serp.se/v1/admin/merge-duplicates --> {groups: [...], merged: N}
+        POST("/merge-duplicates", (rc) -> {
+            rc.json().send(DuplicateEntries.merge(rc.getLocal("db")));
+        });
+
+        // POST api.serp.se/v1/admin/update-related --> {full, entries, computed, written}
+        POST("/update-related", (rc) -> {
+            rc.json().send(RelatedEntries.update(rc.getLocal("db")));
+        });
+
+        // GET api.serp.se/v1/admin/orphan-facets --> {running, scanned, deleted, batches, started, finished}
+        GET("/orphan-facets", (rc) -> {
+            rc.json().send(OrphanFacets.progress());
+        });
+
+        // POST api.serp.se/v1/admin/sweep-orphan-facets --> same as above, when done
+        POST("/sweep-orphan-facets", (rc) -> {
+            rc.json().send(OrphanFacets.sweep(rc.getLocal("db"),
+                conf.getInteger("connect.facets.sweep.batch", 500), 0));
+        });
+
+        // GET api.serp.se/v1/admin/metrics --> {search: {count, meanMs, p50Ms, ...}, ...}
+        GET("/metrics", (rc) -> {
+            rc.json().send(Metrics.snapshot());
+        });
+
+        // POST api.serp.se/v1/admin/reconcile-counters --> {checked, repaired}
+        POST("/reconcile-counters", (rc) -> {
+            rc.json().send(CollectionCounters.reconcile(rc.getLocal("db")));
+        });
+
+        // GET api.serp.se/v1/admin/response-cache --> {entries, bytes, hitRatio, ...}
+        GET("/response-cache", (rc) -> {
+            rc.json().send(ResponseCache.stats());
+        });
+
         GET("/{id}/is-collection-owner", (rc)->{
    		 rc.status(200).json().send(Collection.isOwner(rc));
        });
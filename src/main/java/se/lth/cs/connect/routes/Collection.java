@@ -1,12 +1,18 @@
 package se.lth.cs.connect.routes;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -39,9 +45,13 @@ import se.lth.cs.connect.TrustLevel;
 import se.lth.cs.connect.events.DeleteEntryEvent;
 import se.lth.cs.connect.events.LeaveCollectionEvent;
 import se.lth.cs.connect.modules.AccountSystem;
+import se.lth.cs.connect.modules.ChangeFeed;
 import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Export;
+import se.lth.cs.connect.modules.Jobs;
+import se.lth.cs.connect.modules.ResponseCache;
 import se.lth.cs.connect.modules.TaxonomyDB;
-import se.lth.cs.connect.modules.TaxonomyDB.Facet;
+import se.lth.cs.connect.modules.TaxonomyIndex;
 import se.lth.cs.connect.modules.TaxonomyDB.Taxonomy;
 import se.lth.cs.connect.routes.Entry.TaxonomyFacet;
 
@@ -83,8 +93,46 @@ public class Collection extends BackendRouter {
     	public List<Long> entities;
 	}
 
+    /* Emails per invite request */
+    static final int MAX_INVITES = 500;
+
+    /* Entries per addEntries request, and per copy statement */
+    static final int MAX_COPIES = 5000;
+    static final int COPY_BATCH = 500;
+
+    /* Entries per fork statement */
+    static final int FORK_BATCH = 500;
+
+    /* Facets per reclassify statement */
+    static final int RECLASSIFY_BATCH = 500;
+
+    /**
+     * JSON request body for /collection/{id}/addEntries
+     */
+    static class CopyRequest {
+        public List<Long> entries;
+    }
+
+    /**
+     * An entry that was copied into a collection.
+     */
+    public static class Copy {
+        public long source, id;
+    }
+
+    /**
+     * A forked collection, and the job that fills it when forked with
+     * async=true.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Fork {
+        public long id, entries;
+        public Jobs.Job job;
+    }
+
     @Override
 	protected void setup(PippoSettings conf) {
+        final int importBatchSize = conf.getInteger("connect.entry.bulk.batch", 250);
 
         // POST api.serpconnect.cs.lth.se/v1/collection HTTP/1.1
         // name=blabla project=blabla
@@ -102,29 +150,8 @@ public class Collection extends BackendRouter {
             final String project = rc.getParameter("project").toString();
             final String name = rc.getParameter("name").toString();
 
-            final JcNode proj = new JcNode("p");
-            final JcNode usr = new JcNode("u");
-            final JcNumber id = new JcNumber("x");
-            final JcNode coll = new JcNode("c");
-
-            //usr-(member_of)->coll-(owner)->user
-            JcQueryResult res = Database.query(Database.access(), new IClause[]{
-                MATCH.node(usr).label("user").property("email").value(email),
-                MATCH.node(proj).label("project").property("name").value(project),
-                CREATE.node(usr).relation().type("MEMBER_OF").out()
-                    .node(coll).label("collection")
-                    .property("name").value(name)
-                    .relation().type("OWNER").out().node(usr),
-                CREATE.node(coll).relation().type("EXTENDS").out().node(proj),
-                RETURN.value(coll.id()).AS(id)
-            });
-
-            int collectionId = res.resultOf(id).get(0).intValue();
-            try {
-				TaxonomyDB.update(TaxonomyDB.collection(collectionId), new TaxonomyDB.Taxonomy());
-			} catch (JsonProcessingException e) {
-				e.printStackTrace();
-			}
+            long collectionId = create(Database.access(), email, project, name,
+                new TaxonomyDB.Taxonomy());
 
             rc.json().send(
             	"{ \"id\": " + collectionId + " }");
@@ -139,17 +166,12 @@ public class Collection extends BackendRouter {
         		throw new RequestException("Invalid id");
         	}
         	int id = Integer.parseInt(ids);
-        	JcNode coll = new JcNode("coll");
-
-        	JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-                    MATCH.node(coll).label("collection"),
-                    WHERE.valueOf(coll.id()).EQUALS(id),
-                    NATIVE.cypher("RETURN true AS ok")
-            });
-
-        	if (res.resultOf(new JcBoolean("ok")).size() == 0)
+        	long version = ChangeFeed.version(rc.getLocal("db"), id);
+        	if (version < 0)
                 throw new RequestException("id does not exist in database");
 
+            // Cached responses are only valid for this version
+            rc.setLocal("version", version);
             rc.next();
         });
 
@@ -157,27 +179,60 @@ public class Collection extends BackendRouter {
         GET("/{id}/graph", (rc) -> {
             int id = rc.getParameter("id").toInt();
 
-            JcNode coll = new JcNode("coll");
-            JcNode node = new JcNode("entry");
-            JcRelation rel = new JcRelation("rel");
+            ResponseCache.send(rc, id, rc.getLocal("version"), "graph", () -> {
+                JcNode coll = new JcNode("coll");
+                JcNode node = new JcNode("entry");
+                JcRelation rel = new JcRelation("rel");
 
-            JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-                MATCH.node(coll).label("collection")
-                    .relation().type("CONTAINS")
-                    .node(node).label("entry"),
-                WHERE.valueOf(coll.id()).EQUALS(id),
-                OPTIONAL_MATCH.node(node).relation(rel).out().node().label("facet"),
-                RETURN.value(node),
-                RETURN.value(rel)
+                JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
+                    MATCH.node(coll).label("collection")
+                        .relation().type("CONTAINS")
+                        .node(node).label("entry"),
+                    WHERE.valueOf(coll.id()).EQUALS(id),
+                    OPTIONAL_MATCH.node(node).relation(rel).out().node().label("facet"),
+                    RETURN.value(node),
+                    RETURN.value(rel)
+                });
+
+                return new Graph(res.resultOf(node), res.resultOf(rel));
             });
+        });
 
-            rc.json().send(new Graph(res.resultOf(node), res.resultOf(rel)));
+        // GET /v1/collection/55/export?format=csv
+        // --> one line per entry, with its classification flattened
+        GET("/{id}/export", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            final List<String> facets = new ArrayList<String>(TaxonomyIndex
+                .ofCollection(projectOf(rc.getLocal("db"), id), id)
+                .facets());
+            Collections.sort(facets);
+
+            Export.send(rc,
+                new Export.Source("(c:collection)-[:CONTAINS]->(e:entry)", "id(c) = {id}", true)
+                    .param("id", id),
+                facets, "collection-" + id);
+        });
+
+        // GET /v1/collection/55/overlap?with=71
+        // --> {shared: [ids], equivalent: [{id, other, onlyHere, onlyInOther}], onlyHere: [ids], ...}
+        GET("/{id}/overlap", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            final long other = otherCollection(rc, "with");
+            rc.json().send(CollectionDiff.diff(rc.getLocal("db"), id, other));
+        });
+
+        // GET /v1/collection/55/changes?since=120
+        // --> {seq: 135, nodes: [], edges: [], removed: [ids]}
+        GET("/{id}/changes", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            final long since = rc.getParameter("since").toLong(-1);
+            rc.json().send(ChangeFeed.ofCollection(rc.getLocal("db"), id, since));
         });
 
         // { version: number, taxonomy: [...] }
         GET("/{id}/taxonomy", (rc) -> {
         	final int id = rc.getParameter("id").toInt();
-        	rc.json().send(TaxonomyDB.read(TaxonomyDB.collection(id)));
+        	TaxonomyDB.send(TaxonomyDB.collection(id), rc);
         });
 
         // GET api.serpconnect.cs.lth.se/{id}/stats HTTP/1.1
@@ -185,33 +240,31 @@ public class Collection extends BackendRouter {
         GET("/{id}/stats", (rc) -> {
             int id = rc.getParameter("id").toInt();
 
-            JcNode coll = new JcNode("coll");
-            JcRelation u = new JcRelation("u");
-            JcRelation e = new JcRelation("e");
-
-            JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-                MATCH.node().label("user")
-                    .relation(u).type("MEMBER_OF")
-                    .node(coll).label("collection"),
-                WHERE.valueOf(coll.id()).EQUALS(id),
-                OPTIONAL_MATCH.node(coll)
-                    .relation(e).type("CONTAINS")
-                    .node().label("entry"),
-                NATIVE.cypher("RETURN COUNT(DISTINCT u) AS users, COUNT(DISTINCT e) AS entries")
-            });
-
-            final java.math.BigDecimal users = res.resultOf(new JcNumber("users")).get(0);
-            final java.math.BigDecimal entries = res.resultOf(new JcNumber("entries")).get(0);
-
-            class RetVal {
-                public int members, entries;
-                public RetVal(int mem, int ent) {
-                    members = mem;
-                    entries = ent;
+            ResponseCache.send(rc, id, rc.getLocal("version"), "stats", () -> {
+                // Counters are maintained by every write, see CollectionCounters.
+                // Collections that have not been reconciled yet are counted.
+                JcQueryResult res = Database.execute(rc.getLocal("db"), Collections.singletonList(
+                    new Database.Statement(
+                        "MATCH (c:collection) WHERE id(c) = {id} " +
+                        "RETURN CASE WHEN has(c.members) THEN c.members " +
+                            "ELSE size((c)<-[:MEMBER_OF]-(:user)) END AS users, " +
+                        "CASE WHEN has(c.entries) THEN c.entries " +
+                            "ELSE size((c)-[:CONTAINS]->(:entry)) END AS entries")
+                        .param("id", id))).get(0);
+
+                final java.math.BigDecimal users = res.resultOf(new JcNumber("users")).get(0);
+                final java.math.BigDecimal entries = res.resultOf(new JcNumber("entries")).get(0);
+
+                class RetVal {
+                    public int members, entries;
+                    public RetVal(int mem, int ent) {
+                        members = mem;
+                        entries = ent;
+                    }
                 }
-            }
 
-            rc.json().send(new RetVal(users.intValue(), entries.intValue()));
+                return new RetVal(users.intValue(), entries.intValue());
+            });
         });
 
         // GET api.serpconnect.cs.lth.se/{id}/entries HTTP/1.1
@@ -219,19 +272,53 @@ public class Collection extends BackendRouter {
         GET("/{id}/entries", (rc) -> {
             int id = rc.getParameter("id").toInt();
 
-            final JcNode entry = new JcNode("e");
+            ResponseCache.send(rc, id, rc.getLocal("version"), "entries", () -> {
+                final JcNode entry = new JcNode("e");
+                final JcNode coll = new JcNode("c");
+                JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
+                    MATCH.node(coll).label("collection")
+                        .relation().type("CONTAINS")
+                        .node(entry).label("entry"),
+                    WHERE.valueOf(coll.id()).EQUALS(id),
+                    RETURN.value(entry)
+                });
+
+                final List<GrNode> entries = res.resultOf(entry);
+
+                return Graph.Node.fromList(entries);
+            });
+        });
+
+        // GET /v1/collection/55/classified?facet=SCOPE
+        // --> [entries classified under SCOPE or any of its descendants]
+        GET("/{id}/classified", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            if (rc.getParameter("facet").isEmpty())
+                throw new RequestException("Must specify 'facet' parameter.");
+
+            final String facet = rc.getParameter("facet").toString();
+            final Set<String> types = TaxonomyIndex
+                .ofCollection(projectOf(rc.getLocal("db"), id), id)
+                .subtree(facet);
+            if (types.isEmpty())
+                throw new RequestException(404, "No such facet in taxonomy.");
+
             final JcNode coll = new JcNode("c");
+            final JcNode entry = new JcNode("e");
+            final JcRelation rel = new JcRelation("r");
+
             JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
                 MATCH.node(coll).label("collection")
                     .relation().type("CONTAINS")
-                    .node(entry).label("entry"),
-                WHERE.valueOf(coll.id()).EQUALS(id),
-                RETURN.value(entry)
+                    .node(entry).label("entry")
+                    .relation(rel).out()
+                    .node().label("facet"),
+                WHERE.valueOf(coll.id()).EQUALS(id)
+                    .AND().valueOf(rel.type()).IN_list(types.toArray()),
+                RETURN.DISTINCT().value(entry)
             });
 
-            final List<GrNode> entries = res.resultOf(entry);
-
-            rc.status(200).json().send(Graph.Node.fromList(entries));
+            rc.status(200).json().send(Graph.Node.fromList(res.resultOf(entry)));
         });
 
         // GET /v1/collection/55/project
@@ -295,27 +382,24 @@ public class Collection extends BackendRouter {
             String email = rc.getSession("email");
             int id = rc.getParameter("id").toInt();
 
-            JcNode user = new JcNode("user");
-            JcNode coll = new JcNode("coll");
-            JcRelation rel = new JcRelation("rel");
-
             handleInvitation(rc,"accepted");
 
             // Replace an INVITE type relation with a MEMBER_OF relation
-            JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-                MATCH.node(user).label("user").property("email").value(email)
-                    .relation(rel).type("INVITE")
-                    .node(coll).label("collection"),
-                WHERE.valueOf(coll.id()).EQUALS(id),
-                MERGE.node(user).relation().out().type("MEMBER_OF").node(coll),
-                DO.DELETE(rel),
-                NATIVE.cypher("RETURN TRUE AS ok")
-            });
-
-            if (res.resultOf(new JcBoolean("ok")).size() > 0)
-                rc.getResponse().ok();
-            else
+            JcQueryResult res = Database.execute(rc.getLocal("db"), Collections.singletonList(
+                new Database.Statement(
+                    "MATCH (u:user {email: {email}})-[i:INVITE]->(c:collection) " +
+                    "WHERE id(c) = {id} " +
+                    "MERGE (u)-[:MEMBER_OF]->(c) ON CREATE SET c.members = c.members + 1 " +
+                    "DELETE i " +
+                    "RETURN TRUE AS ok")
+                    .param("email", email)
+                    .param("id", id))).get(0);
+
+            if (res.resultOf(new JcBoolean("ok")).size() == 0)
                 throw new RequestException("Not invited to that collection.");
+
+            ChangeFeed.bump(rc.getLocal("db"), id);
+            rc.getResponse().ok();
         });
 
         // Must be logged in AND member of collection to proceed (or ADMIN)
@@ -352,96 +436,126 @@ public class Collection extends BackendRouter {
         // GET /{id}/entities --> [{id:1,text:"yalla"}]
         GET("/{id}/entities", (rc) -> {
         	final long id = rc.getParameter("id").toLong();
-        	final JcNode collection = new JcNode("c");
-        	final JcNode entity = new JcNode("e");
-        	final JcNumber eid = new JcNumber("eid");
-        	final JcString txt = new JcString("txt");
-
-        	JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-        		MATCH.node(collection)
-            		.relation().type("CONTAINS")
-            		.node().label("entry")
-            		.relation()
-            		.node(entity).label("facet"),
-            	WHERE.valueOf(collection.id()).EQUALS(id),
-            	RETURN.DISTINCT().value(entity.id()).AS(eid),
-            	RETURN.value(entity.property("text")).AS(txt)
-            });
 
-            List<BigDecimal> entityIds = res.resultOf(eid);
-            List<String> entityText = res.resultOf(txt);
+            ResponseCache.send(rc, id, rc.getLocal("version"), "entities", () -> {
+            	final JcNode collection = new JcNode("c");
+            	final JcNode entity = new JcNode("e");
+            	final JcNumber eid = new JcNumber("eid");
+            	final JcString txt = new JcString("txt");
+
+            	JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
+            		MATCH.node(collection)
+                		.relation().type("CONTAINS")
+                		.node().label("entry")
+                		.relation()
+                		.node(entity).label("facet"),
+                	WHERE.valueOf(collection.id()).EQUALS(id),
+                	RETURN.DISTINCT().value(entity.id()).AS(eid),
+                	RETURN.value(entity.property("text")).AS(txt)
+                });
 
-            class Entity {
-            	public long id;
-            	public String text;
-            	public Entity(long id, String text) {
-            		this.id = id;
-            		this.text = text;
-            	}
-            }
+                List<BigDecimal> entityIds = res.resultOf(eid);
+                List<String> entityText = res.resultOf(txt);
 
-            Entity[] entities = new Entity[entityIds.size()];
-            for (int i = 0; i < entities.length; i++)
-            	entities[i] = new Entity(entityIds.get(i).longValue(), entityText.get(i));
+                class Entity {
+                	public long id;
+                	public String text;
+                	public Entity(long id, String text) {
+                		this.id = id;
+                		this.text = text;
+                	}
+                }
 
-            rc.json().send(entities);
+                Entity[] entities = new Entity[entityIds.size()];
+                for (int i = 0; i < entities.length; i++)
+                	entities[i] = new Entity(entityIds.get(i).longValue(), entityText.get(i));
+
+                return entities;
+            });
         });
 
         // GET /{id}/classification --> [{facetId:"PLANNING,text:["yalla"]}]
         GET("/{id}/classification", (rc) -> {
         	final long id = rc.getParameter("id").toLong();
-        	final JcNode collection = new JcNode("c");
-        	final JcNode entity = new JcNode("e");
-        	final JcRelation facet = new JcRelation("f");
-
-        	JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-        		MATCH.node(collection)
-            		.relation().type("CONTAINS")
-            		.node().label("entry")
-            		.relation(facet)
-            		.node(entity).label("facet"),
-            	WHERE.valueOf(collection.id()).EQUALS(id),
-            	NATIVE.cypher("RETURN COLLECT(DISTINCT e.text) AS text, type(f) AS rel"),
-            	NATIVE.cypher("ORDER BY type(f)")
-            });
 
-            List<List<?>> facetText = res.resultOf(new JcCollection("text"));
-            List<String> facetTypes = res.resultOf(new JcString("rel"));
+            ResponseCache.send(rc, id, rc.getLocal("version"), "classification", () -> {
+            	final JcNode collection = new JcNode("c");
+            	final JcNode entity = new JcNode("e");
+            	final JcRelation facet = new JcRelation("f");
+
+            	JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
+            		MATCH.node(collection)
+                		.relation().type("CONTAINS")
+                		.node().label("entry")
+                		.relation(facet)
+                		.node(entity).label("facet"),
+                	WHERE.valueOf(collection.id()).EQUALS(id),
+                	NATIVE.cypher("RETURN COLLECT(DISTINCT e.text) AS text, type(f) AS rel"),
+                	NATIVE.cypher("ORDER BY type(f)")
+                });
+
+                List<List<?>> facetText = res.resultOf(new JcCollection("text"));
+                List<String> facetTypes = res.resultOf(new JcString("rel"));
 
-            TaxonomyFacet[] facets = new TaxonomyFacet[facetTypes.size()];
-            for (int i = 0; i < facets.length; i++)
-            	facets[i] = new TaxonomyFacet(facetTypes.get(i), facetText.get(i));
+                TaxonomyFacet[] facets = new TaxonomyFacet[facetTypes.size()];
+                for (int i = 0; i < facets.length; i++)
+                	facets[i] = new TaxonomyFacet(facetTypes.get(i), facetText.get(i));
 
-            rc.json().send(facets);
+                return facets;
+            });
         });
 
 
         // POST /55/reclassify {oldType:facetId,newType:facetId,entities:[33,13]}
+        // POST /55/reclassify?async=true --> 202 {id: job, state: "queued", ...}
         POST("/{id}/reclassify", (rc) -> {
         	final long id = rc.getParameter("id").toLong();
         	final ReclassifyRequest req = rc.createEntityFromBody(ReclassifyRequest.class);
+        	if (req == null || req.oldFacetId == null || req.newFacetId == null || req.entities == null)
+        		throw new RequestException("Must provide oldFacetId, newFacetId and entities");
+        	if (req.oldFacetId.contains("`") || req.newFacetId.contains("`"))
+        		throw new RequestException("Invalid facet id");
+
+        	final List<List<Long>> chunks = new ArrayList<List<Long>>();
+        	if (!req.oldFacetId.equals(req.newFacetId)) {
+        		for (int i = 0; i < req.entities.size(); i += RECLASSIFY_BATCH)
+        			chunks.add(req.entities.subList(i, Math.min(req.entities.size(), i + RECLASSIFY_BATCH)));
+        	}
 
-        	for (long eid : req.entities) {
-        		final JcNode c = new JcNode("c");
-        		final JcRelation r = new JcRelation("r");
-        		final JcNode n = new JcNode("n");
-        		final JcNode e = new JcNode("e");
-
-        		Database.query(rc.getLocal("db"), new IClause[]{
-        			MATCH.node(c).label("collection")
-        				.relation().type("CONTAINS")
-        				.node(n).label("entry")
-        				.relation(r).type(req.oldFacetId)
-        				.node(e).label("facet"),
-        			WHERE.valueOf(c.id()).EQUALS(id).AND().valueOf(e.id()).EQUALS(eid),
-        			CREATE.node(n).relation().type(req.newFacetId).out().node(e),
-        			DO.DELETE(r)
+        	// One transaction per chunk, so that the locks are held briefly
+        	if (rc.getParameter("async").toBoolean(false)) {
+        		final Jobs.Job job = Jobs.submit("reclassify", "collection/" + id, req.entities.size(), (j) -> {
+        			final IDBAccess db = Database.access();
+        			try {
+        				for (List<Long> chunk : chunks) {
+        					Database.execute(db, Collections.singletonList(
+        						reclassify(id, req.oldFacetId, req.newFacetId, chunk)));
+        					j.progress(chunk.size());
+        				}
+        			} finally {
+        				db.close();
+        			}
         		});
+        		rc.status(202).json().send(job);
+        		return;
         	}
 
+        	final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        	for (List<Long> chunk : chunks)
+        		statements.add(reclassify(id, req.oldFacetId, req.newFacetId, chunk));
+        	Database.execute(rc.getLocal("db"), statements);
         	rc.getResponse().ok();
         });
 
+        // GET /55/jobs/7 --> {id: 7, kind: "reclassify", state: "running", total: 900, done: 500, ...}
+        GET("/{id}/jobs/{job}", (rc) -> {
+            final long id = rc.getParameter("id").toLong();
+            final Jobs.Job job = Jobs.get(rc.getParameter("job").toLong(-1));
+            if (job == null || !job.belongsTo("collection/" + id))
+                throw new RequestException(404, "No such job.");
+            rc.json().send(job);
+        });
+
         // POST api.serpconnect.cs.lth.se/{id}/leave HTTP/1.1
         POST("/{id}/leave", (rc) -> {
             final String email = rc.getSession("email");
@@ -470,74 +584,141 @@ public class Collection extends BackendRouter {
             if (rc.getParameter("entryId").isEmpty())
             	throw new RequestException("Must provide entryId");
 
-            final int entryId = rc.getParameter("entryId").toInt();
+            final long entryId = rc.getParameter("entryId").toLong();
+            final List<Copy> copies = copyEntries(rc.getLocal("db"), id,
+                Collections.singletonList(entryId));
+            if (copies.isEmpty())
+                throw new RequestException(404, "No such entry.");
 
-            final JcNode entry = new JcNode("e");
-            final JcNode coll = new JcNode("c");
-            final JcNode entity = new JcNode("x");
-            final JcRelation facet = new JcRelation("f");
-            final JcNumber entityId = new JcNumber("d");
-            final JcString projectName = new JcString("pid");
-            final JcNode project = new JcNode("cp");
-            final JcString facetType = new JcString("t");
-
-            final JcQueryResult rr = Database.query(rc.getLocal("db"), new IClause[]{
-            	MATCH.node(entry).label("entry")
-            		.relation(facet)
-            		.node(entity).label("facet"),
-            	WHERE.valueOf(entry.id()).EQUALS(entryId),
-            	RETURN.value(entry).AS(entry),
-            	RETURN.value(facet.type()).AS(facetType),
-            	RETURN.value(entity.id()).AS(entityId)
-            });
+            rc.getResponse().ok();
+        });
 
-            final Graph.Node graphNode = new Graph.Node(rr.resultOf(entry).get(0));
+        // POST api.serpconnect.cs.lth.se/{id}/addEntries HTTP/1.1
+        // {entries: [1, 2, 3]} --> [{source: 1, id: 71}, ...]
+        POST("/{id}/addEntries", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            final CopyRequest req = rc.createEntityFromBody(CopyRequest.class);
+            if (req == null || req.entries == null || req.entries.isEmpty())
+                throw new RequestException("Must provide entries");
+            if (req.entries.size() > MAX_COPIES)
+                throw new RequestException("Can copy at most " + MAX_COPIES + " entries at once");
 
-            final JcQueryResult cqr = Database.query(rc.getLocal("db"), new IClause[]{
-            	MATCH.node(coll).label("collection"),
-                WHERE.valueOf(coll.id()).EQUALS(id),
-                MATCH.node(project).label("project")
-                    .relation().type("EXTENDS").node(coll),
-        		graphNode.create(entry),
-        		CREATE.node(entry)
-        			.relation().type("CONTAINS").out()
-        			.node(coll),
-                RETURN.value(entry.id()).AS(entityId),
-                RETURN.value(project.property("name")).AS(projectName)
-            });
+            rc.json().send(copyEntries(rc.getLocal("db"), id, req.entries));
+        });
 
+        // POST api.serpconnect.cs.lth.se/{id}/fork HTTP/1.1
+        // [name=...] [entries=copy|link] [async=true] --> {id: 72, entries: 900}
+        POST("/{id}/fork", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            final String email = rc.getSession("email");
+            final IDBAccess db = rc.getLocal("db");
+
+            final String mode = rc.getParameter("entries").toString("copy");
+            if (!"copy".equals(mode) && !"link".equals(mode))
+                throw new RequestException("'entries' must be copy or link");
+
+            String name = rc.getParameter("name").toString();
+            if (name == null || name.isEmpty())
+                name = nameOf(db, id) + " (fork)";
+
+            // The extension is duplicated first, so that copies keep
+            // classifications that only the extension allows
+            final Taxonomy source = TaxonomyDB.taxonomyOf(TaxonomyDB.collection(id));
+            final Taxonomy extension = new Taxonomy();
+            if (source != null && source.taxonomy != null)
+                extension.taxonomy.addAll(source.taxonomy);
+
+            final Fork fork = new Fork();
+            fork.id = create(db, email, projectOf(db, id), name, extension);
+
+            final List<Long> entries = entriesOf(db, id);
+            final List<Database.Statement> chunks = forkStatements(db, fork.id, entries, mode);
+            fork.entries = entries.size();
+
+            if (rc.getParameter("async").toBoolean(false)) {
+                fork.job = Jobs.submit("fork", "collection/" + id, entries.size(), (j) -> {
+                    final IDBAccess access = Database.access();
+                    try {
+                        for (int i = 0; i < chunks.size(); i++) {
+                            Database.execute(access, Collections.singletonList(chunks.get(i)));
+                            j.progress(Math.min(FORK_BATCH, entries.size() - i * FORK_BATCH));
+                        }
+                    } finally {
+                        access.close();
+                    }
+                });
+                rc.status(202).json().send(fork);
+                return;
+            }
 
-            // Only copy classification relations if they exist in the
-            // extended or default taxonomy.
-            final String projectId = cqr.resultOf(projectName).get(0);
-            final TaxonomyDB.Taxonomy baseTaxonomy = TaxonomyDB.taxonomyOf(TaxonomyDB.project(projectId));
-            ArrayList<String> taxonomy = new ArrayList<String>();
-            for (Facet f : baseTaxonomy.taxonomy)
-            	taxonomy.add(f.id);
-
-            final TaxonomyDB.Taxonomy collectionTaxonomy = TaxonomyDB.taxonomyOf(TaxonomyDB.collection(id));
-        	for (Facet f : collectionTaxonomy.taxonomy)
-        		taxonomy.add(f.id);
-
-        	final long newEntryId = cqr.resultOf(entityId).get(0).longValue();
-        	final List<String> facets = rr.resultOf(facetType);
-        	final List<BigDecimal> entities = rr.resultOf(entityId);
-            for (int i = 0; i < facets.size(); i++) {
-            	final String type = facets.get(i);
-
-            	if (!taxonomy.contains(type))
-            		continue;
-
-            	Database.query(rc.getLocal("db"), new IClause[]{
-            		MATCH.node(entry).label("entry"),
-            		MATCH.node(entity).label("facet"),
-            		WHERE.valueOf(entry.id()).EQUALS(newEntryId)
-            			.AND().valueOf(entity.id()).EQUALS(entities.get(i).longValue()),
-            		CREATE.node(entry).relation().type(type).out().node(entity)
-            	});
+            Database.execute(db, chunks);
+            rc.json().send(fork);
+        });
+
+        // POST api.serpconnect.cs.lth.se/{id}/merge HTTP/1.1
+        // from=71 [entries=copy|link] [async=true] --> {added: 40, classified: 3}
+        POST("/{id}/merge", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            final long from = otherCollection(rc, "from");
+            final IDBAccess db = rc.getLocal("db");
+
+            final String mode = rc.getParameter("entries").toString("copy");
+            if (!"copy".equals(mode) && !"link".equals(mode))
+                throw new RequestException("'entries' must be copy or link");
+
+            final Set<String> types = TaxonomyIndex.ofCollection(projectOf(db, id), id).facets();
+            final CollectionDiff.Merge merge = new CollectionDiff.Merge();
+            final List<Database.Statement> batches = CollectionDiff.mergeStatements(db,
+                CollectionDiff.diff(db, id, from), mode, types, merge);
+
+            if (rc.getParameter("async").toBoolean(false)) {
+                final Jobs.Job job = Jobs.submit("merge", "collection/" + id, batches.size(), (j) -> {
+                    final IDBAccess access = Database.access();
+                    try {
+                        for (Database.Statement batch : batches) {
+                            Database.execute(access, Collections.singletonList(batch));
+                            j.progress(1);
+                        }
+                    } finally {
+                        access.close();
+                    }
+                });
+                rc.status(202).json().send(job);
+                return;
             }
 
-            rc.getResponse().ok();
+            // One transaction per batch, so a large merge holds no long locks
+            for (Database.Statement batch : batches)
+                Database.execute(db, Collections.singletonList(batch));
+            rc.json().send(merge);
+        });
+
+        // POST api.serpconnect.cs.lth.se/{id}/import?format=csv HTTP/1.1
+        // (rows of an export) --> {rows, created, linked, failed, errors: [{row, error}]}
+        POST("/{id}/import", (rc) -> {
+            final int id = rc.getParameter("id").toInt();
+            final AccountSystem.Account user = AccountSystem.findByEmail(rc.getSession("email"));
+            if (!TrustLevel.authorize(user.trust, TrustLevel.USER))
+                throw new RequestException(403, "Please verify account before submitting entries.");
+
+            final String onDuplicate = rc.getParameter("onDuplicate").toString("create");
+            if (!"create".equals(onDuplicate) && !"link".equals(onDuplicate) && !"reject".equals(onDuplicate))
+                throw new RequestException("'onDuplicate' must be create, link or reject");
+
+            final boolean csv = EntryImport.isCsv(rc.getParameter("format").toString(),
+                rc.getRequest().getContentType());
+            final EntryImport importer = new EntryImport(rc.getLocal("db"), id,
+                TaxonomyIndex.ofCollection(projectOf(rc.getLocal("db"), id), id),
+                !TrustLevel.authorize(user.trust, TrustLevel.VERIFIED),
+                onDuplicate, importBatchSize);
+
+            final InputStream body;
+            try {
+                body = rc.getRequest().getHttpServletRequest().getInputStream();
+            } catch (IOException ioe) {
+                throw new RequestException("Could not read request body");
+            }
+            rc.json().send(csv ? importer.csv(body) : importer.ndjson(body));
         });
 
         // GET api.serpconnect.cs.lth.se/{id}/members HTTP/1.1
@@ -584,22 +765,14 @@ public class Collection extends BackendRouter {
         		throw new RequestException(400, "Can't kick yourself, please use leave collection if you want to leave the collection");
 
         	 int id = rc.getParameter("id").toInt();
-             JcNode user = new JcNode("user");
-             JcNode coll = new JcNode("coll");
-             JcRelation rel = new JcRelation("connection");
-
-             JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-                 MATCH.node(user).label("user").property("email").value(email)
-                     .relation(rel)
-                     .node(coll).label("collection"),
-                 WHERE.valueOf(coll.id()).EQUALS(id),
-                 DO.DELETE(rel),
-                 RETURN.value(user)
-             });
-
-             if(res.resultOf(user).isEmpty())
+
+             JcQueryResult res = Database.execute(rc.getLocal("db"), Collections.singletonList(
+                 LeaveCollectionEvent.disconnect(id, email))).get(0);
+
+             if(res.resultOf(new JcString("type")).isEmpty())
             	 throw new RequestException(404, email + " is not a member of collection " + id);
 
+             ChangeFeed.bump(rc.getLocal("db"), id);
         	 rc.getResponse().ok();
         });
 
@@ -609,57 +782,33 @@ public class Collection extends BackendRouter {
         	if (rc.getParameter("email").isEmpty())
                 throw new RequestException("Invalid email");
             int id = rc.getParameter("id").toInt();
-            List<String> emails = rc.getParameter("email").toList(String.class);
             String inviter = rc.getSession("email");
 
-            for (String email : emails) {
-                JcNode user = new JcNode("user");
-                JcNode inviterNode = new JcNode("inviter");
-                JcNode coll = new JcNode("coll");
-
-                boolean memberOf = Database.query(rc.getLocal("db"), new IClause[]{
-                        MATCH.node().label("user").property("email").value(email).
-                        relation().out().type("MEMBER_OF").
-                        node(coll),
-                        WHERE.valueOf(coll.id()).EQUALS(id),
-                        NATIVE.cypher("RETURN TRUE AS ok")
-                }).resultOf(new JcBoolean("ok")).size() > 0;
-
-                // Don't send new invites if already member
-                if(memberOf)
-                    continue;
-
-                JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-                    MATCH.node(user).label("user").property("email").value(email),
-                    RETURN.value(user)
-                });
-
-                boolean emptyUser = res.resultOf(user).isEmpty();
+            Set<String> unique = new LinkedHashSet<String>();
+            for (String email : rc.getParameter("email").toList(String.class)) {
+                if (email != null && !email.trim().isEmpty())
+                    unique.add(email.trim());
+            }
+            if (unique.isEmpty())
+                throw new RequestException("Invalid email");
+            if (unique.size() > MAX_INVITES)
+                throw new RequestException("Can invite at most " + MAX_INVITES + " users at once");
+            List<String> emails = new ArrayList<String>(unique);
 
-                //create temporary unregistered user if non existent
-                if (emptyUser) {
-                    AccountSystem.createAccount(email, "", TrustLevel.UNREGISTERED);
-                } else if(res.resultOf(user).get(0).getProperty("trust").getValue().equals(TrustLevel.UNREGISTERED)){
-                    emptyUser = true;
-                }
+            // Create temporary unregistered users for unknown emails
+            AccountSystem.createPlaceholders(emails);
 
-                // Use MERGE so we don't end up with multiple invites per user
-                // keep track of who invited the user and to which collection
-                Database.query(rc.getLocal("db"), new IClause[] {
-                    MATCH.node(user).label("user").property("email").value(email),
-                    MATCH.node(coll).label("collection"),
-                    WHERE.valueOf(coll.id()).EQUALS(id),
-                    MATCH.node(inviterNode).label("user").property("email").value(inviter),
-                    MERGE.node(user).relation().out().type("INVITE").node(coll),
-                    MERGE.node(user).relation().out().type("INVITER")
-                        .property("parentnode").value(id).node(inviterNode)
-                });
+            JcQueryResult res = Database.execute(rc.getLocal("db"), Collections.singletonList(
+                inviteStatement(id, inviter, emails))).get(0);
 
-                String template = emptyUser ? inviteNewUserTemplate
-                                            : inviteTemplate;
+            List<String> invited = res.resultOf(new JcString("email"));
+            List<Boolean> unregistered = res.resultOf(new JcBoolean("unregistered"));
+            for (int i = 0; i < invited.size(); i++) {
+                String template = unregistered.get(i) ? inviteNewUserTemplate
+                                                      : inviteTemplate;
                 template = template.replace("{frontend}", frontend);
 
-                app.getMailClient().sendEmail(email, "SERP Connect - Collection Invite", template);
+                app.getMailClient().sendLater(invited.get(i), "SERP Connect - Collection Invite", template);
             }
 
             rc.getResponse().ok();
@@ -700,6 +849,233 @@ public class Collection extends BackendRouter {
 
     }
 
+    /**
+     * Move the classification of the entries in a collection from one
+     * relation type to another, for some facets. The entries are stamped
+     * and every collection containing them is bumped, see ChangeFeed.
+     * Relation types can't be parameterized, so they must not contain
+     * backticks.
+     */
+    static Database.Statement reclassify(long collection, String from, String to,
+            List<Long> facets) {
+        return new Database.Statement(ChangeFeed.NEXT +
+            "UNWIND {facets} AS fid " +
+            "MATCH (c:collection)-[:CONTAINS]->(e:entry)-[r:`" + from + "`]->(f:facet) " +
+            "WHERE id(c) = {collection} AND id(f) = fid " +
+            "MERGE (e)-[n:`" + to + "`]->(f) ON CREATE SET n.seq = seq " +
+            "DELETE r " +
+            "SET e.seq = seq " +
+            "WITH DISTINCT e, seq " +
+            ChangeFeed.CONTAINING)
+            .param("collection", collection)
+            .param("facets", facets);
+    }
+
+    /**
+     * Invite users that aren't members yet to a collection. Uses MERGE so
+     * we don't end up with multiple invites per user, and keeps track of who
+     * invited the user and to which collection. Returns the invited emails,
+     * and whether they are unregistered, as email and unregistered.
+     */
+    static Database.Statement inviteStatement(long collection, String inviter,
+            List<String> emails) {
+        return new Database.Statement(
+            "MATCH (c:collection) WHERE id(c) = {collection} " +
+            "MATCH (inviter:user {email: {inviter}}) " +
+            "UNWIND {emails} AS email " +
+            "MATCH (u:user {email: email}) " +
+            "WHERE NOT (u)-[:MEMBER_OF]->(c) " +
+            "MERGE (u)-[:INVITE]->(c) " +
+            "MERGE (u)-[:INVITER {parentnode: {collection}}]->(inviter) " +
+            "RETURN u.email AS email, u.trust = {unregistered} AS unregistered")
+            .param("collection", collection)
+            .param("inviter", inviter)
+            .param("emails", emails)
+            .param("unregistered", TrustLevel.UNREGISTERED);
+    }
+
+    /**
+     * Copy entries into a collection in one transaction. Copies get the
+     * hash, description or reference/doi and type of their source, and the
+     * classification relations whose types are part of the collection's
+     * effective taxonomy. Entries that don't exist are skipped.
+     */
+    static List<Copy> copyEntries(IDBAccess db, long collection, List<Long> entries) {
+        final Set<String> types = TaxonomyIndex
+            .ofCollection(projectOf(db, collection), collection).facets();
+
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        for (int i = 0; i < entries.size(); i += COPY_BATCH) {
+            statements.add(copyStatement(collection, types,
+                entries.subList(i, Math.min(entries.size(), i + COPY_BATCH))));
+        }
+
+        final List<Copy> copies = new ArrayList<Copy>();
+        for (JcQueryResult res : Database.execute(db, statements)) {
+            final List<BigDecimal> sources = res.resultOf(new JcNumber("source"));
+            final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+            for (int i = 0; i < ids.size(); i++) {
+                final Copy copy = new Copy();
+                copy.source = sources.get(i).longValue();
+                copy.id = ids.get(i).longValue();
+                copies.add(copy);
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Clone entries and their allowed classification in one statement,
+     * stamped with seq, see ChangeFeed. Labels and relation types can't be
+     * parameterized, so the type label is set with a conditional FOREACH
+     * and there is one FOREACH per allowed relation type.
+     */
+    static Database.Statement copyStatement(long collection, Set<String> types,
+            List<Long> entries) {
+        final StringBuilder cypher = new StringBuilder(ChangeFeed.NEXT)
+            .append("MATCH (c:collection) WHERE id(c) = {collection} ")
+            .append("UNWIND {entries} AS sid ")
+            .append("MATCH (src:entry) WHERE id(src) = sid ")
+            .append("CREATE (c)-[:CONTAINS {seq: seq}]->(e:entry) ")
+            .append("SET e.hash = src.hash, e.copyOf = sid, e.created = timestamp(), e.seq = seq, ")
+            .append("e.description = CASE WHEN src:research THEN null ELSE src.description END, ")
+            .append("e.reference = CASE WHEN src:research THEN src.reference END, ")
+            .append("e.doi = CASE WHEN src:research THEN src.doi END, ")
+            .append("c.entries = c.entries + 1, c.version = seq ")
+            .append("FOREACH (x IN CASE WHEN src:research THEN [1] ELSE [] END | SET e:research) ")
+            .append("FOREACH (x IN CASE WHEN src:challenge THEN [1] ELSE [] END | SET e:challenge) ")
+            .append("WITH sid, src, e, seq ")
+            .append("OPTIONAL MATCH (src)-[r]->(f:facet) WHERE type(r) IN {types} ")
+            .append("WITH sid, e, seq, collect({type: type(r), facet: f}) AS rels ");
+        for (String type : types) {
+            if (type.contains("`") || type.contains("'") || type.contains("\\"))
+                continue;
+            cypher.append("FOREACH (n IN [x IN rels WHERE x.type = '").append(type)
+                .append("' | x.facet] | CREATE (e)-[:`").append(type).append("` {seq: seq}]->(n)) ");
+        }
+        cypher.append("RETURN sid AS source, id(e) AS id");
+
+        return new Database.Statement(cypher.toString())
+            .param("collection", collection)
+            .param("entries", entries)
+            .param("types", new ArrayList<String>(types));
+    }
+
+    /**
+     * Id of the collection named by parameter param, which must exist.
+     */
+    static long otherCollection(RouteContext rc, String param) {
+        final long other = rc.getParameter(param).toLong(-1);
+        if (other < 0)
+            throw new RequestException("Must provide '" + param + "' collection id");
+        if (ChangeFeed.version(rc.getLocal("db"), other) < 0)
+            throw new RequestException(404, "No such collection.");
+        return other;
+    }
+
+    /**
+     * Create a collection in project, owned by and with email as its only
+     * member, and store its taxonomy extension. Returns the id.
+     */
+    static long create(IDBAccess db, String email, String project, String name,
+            TaxonomyDB.Taxonomy extension) {
+        final JcNode proj = new JcNode("p");
+        final JcNode usr = new JcNode("u");
+        final JcNumber id = new JcNumber("x");
+        final JcNode coll = new JcNode("c");
+
+        //usr-(member_of)->coll-(owner)->user
+        JcQueryResult res = Database.query(db, new IClause[]{
+            MATCH.node(usr).label("user").property("email").value(email),
+            MATCH.node(proj).label("project").property("name").value(project),
+            CREATE.node(usr).relation().type("MEMBER_OF").out()
+                .node(coll).label("collection")
+                .property("name").value(name)
+                .property("members").value(1)
+                .property("entries").value(0)
+                .relation().type("OWNER").out().node(usr),
+            CREATE.node(coll).relation().type("EXTENDS").out().node(proj),
+            RETURN.value(coll.id()).AS(id)
+        });
+
+        long collectionId = res.resultOf(id).get(0).longValue();
+        // Start from a version that no collection with a reused id had
+        ChangeFeed.bump(db, collectionId);
+        try {
+            TaxonomyDB.update(TaxonomyDB.collection(collectionId), extension);
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+        }
+        return collectionId;
+    }
+
+    /**
+     * Ids of all entries in a collection, in id order.
+     */
+    static List<Long> entriesOf(IDBAccess db, long collection) {
+        final List<Long> ids = new ArrayList<Long>();
+        for (BigDecimal id : Database.execute(db, Collections.singletonList(
+                new Database.Statement(
+                    "MATCH (c:collection)-[:CONTAINS]->(e:entry) WHERE id(c) = {id} " +
+                    "RETURN id(e) AS id ORDER BY id")
+                    .param("id", collection))).get(0).resultOf(new JcNumber("id")))
+            ids.add(id.longValue());
+        return ids;
+    }
+
+    /**
+     * One statement per FORK_BATCH entries that copies (see copyStatement)
+     * or links (see Entry.linkStatement) them into the fork.
+     */
+    static List<Database.Statement> forkStatements(IDBAccess db, long fork,
+            List<Long> entries, String mode) {
+        final Set<String> types = "copy".equals(mode) ?
+            TaxonomyIndex.ofCollection(projectOf(db, fork), fork).facets() : null;
+
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        for (int i = 0; i < entries.size(); i += FORK_BATCH) {
+            final List<Long> chunk = entries.subList(i, Math.min(entries.size(), i + FORK_BATCH));
+            if (types != null) {
+                statements.add(copyStatement(fork, types, chunk));
+                continue;
+            }
+
+            final List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+            for (int j = 0; j < chunk.size(); j++)
+                rows.add(Entry.link(i + j, chunk.get(j)));
+            statements.add(Entry.linkStatement(fork, rows));
+        }
+        return statements;
+    }
+
+    static String nameOf(IDBAccess db, long id) {
+        final List<String> names = Database.execute(db, Collections.singletonList(
+            new Database.Statement("MATCH (c:collection) WHERE id(c) = {id} RETURN c.name AS name")
+                .param("id", id))).get(0).resultOf(new JcString("name"));
+        return names.isEmpty() || names.get(0) == null ? "Collection " + id : names.get(0);
+    }
+
+    /**
+     * Name of the project that the collection extends.
+     */
+    static String projectOf(IDBAccess db, long id) {
+        final JcNode proj = new JcNode("p");
+        final JcNode coll = new JcNode("c");
+        final JcString name = new JcString("n");
+
+        final List<String> names = Database.query(db, new IClause[]{
+            MATCH.node(coll).label("collection")
+                .relation().type("EXTENDS")
+                .node(proj).label("project"),
+            WHERE.valueOf(coll.id()).EQUALS(id),
+            RETURN.value(proj.property("name")).AS(name)
+        }).resultOf(name);
+
+        if (names.isEmpty())
+            throw new RequestException(404, "Collection is not part of a project.");
+        return names.get(0);
+    }
+
     public static boolean isOwner(RouteContext rc){
     	final int id = rc.getParameter("id").toInt();
     	final String email = rc.getSession("email");
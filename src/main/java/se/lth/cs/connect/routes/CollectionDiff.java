@@ -0,0 +1,245 @@
+package se.lth.cs.connect.routes;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcCollection;
+import iot.jcypher.query.values.JcNumber;
+import iot.jcypher.query.values.JcString;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Metrics;
+
+/**
+ * Overlap of two collections, and merging one into the other.
+ *
+ * Entries are shared when both collections contain the same entry, or
+ * equivalent when they contain different entries with the same hash (e.g.
+ * copies). Equivalent entries may differ in classification, which is
+ * compared as "TYPE:text" pairs.
+ *
+ * Entry ids of each collection are read once, in id order, into primitive
+ * arrays and intersected with a linear merge; only the entries left over
+ * are matched by hash.
+ */
+class CollectionDiff {
+    /* Entries per classification query */
+    static final int FETCH_BATCH = 1000;
+
+    /**
+     * Equivalent entries: id here, id in the other collection, and the
+     * classifications only one of them has.
+     */
+    static class Pair {
+        public long id, other;
+        public List<String> onlyHere, onlyInOther;
+    }
+
+    static class Diff {
+        public long collection, other;
+        public int entries, otherEntries;
+        public long[] shared, onlyHere, onlyInOther;
+        public List<Pair> equivalent = new ArrayList<Pair>();
+    }
+
+    static class Merge {
+        public int added, classified;
+    }
+
+    /* Entries of a collection, sorted by id, with their hashes */
+    private static class Members {
+        long[] ids;
+        String[] hashes;
+    }
+
+    private static Members members(IDBAccess db, long collection) {
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (c:collection)-[:CONTAINS]->(e:entry) WHERE id(c) = {id} " +
+                "RETURN id(e) AS id, e.hash AS hash ORDER BY id")
+                .param("id", collection))).get(0);
+
+        final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+        final List<String> hashes = res.resultOf(new JcString("hash"));
+        final Members m = new Members();
+        m.ids = new long[ids.size()];
+        m.hashes = new String[ids.size()];
+        for (int i = 0; i < m.ids.length; i++) {
+            m.ids[i] = ids.get(i).longValue();
+            m.hashes[i] = hashes.get(i);
+        }
+        return m;
+    }
+
+    static Diff diff(IDBAccess db, long collection, long other) {
+        final long start = System.nanoTime();
+        final Members a = members(db, collection);
+        final Members b = members(db, other);
+
+        final Diff diff = new Diff();
+        diff.collection = collection;
+        diff.other = other;
+        diff.entries = a.ids.length;
+        diff.otherEntries = b.ids.length;
+
+        // Merge the sorted arrays; unmatched positions are left for hashes
+        final boolean[] matchedA = new boolean[a.ids.length];
+        final boolean[] matchedB = new boolean[b.ids.length];
+        final long[] shared = new long[Math.min(a.ids.length, b.ids.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.ids.length && j < b.ids.length; ) {
+            if (a.ids[i] < b.ids[j])
+                i++;
+            else if (a.ids[i] > b.ids[j])
+                j++;
+            else {
+                shared[n++] = a.ids[i];
+                matchedA[i++] = true;
+                matchedB[j++] = true;
+            }
+        }
+        diff.shared = Arrays.copyOf(shared, n);
+
+        // Lowest unmatched entry per hash in the other collection
+        final Map<String, Integer> byHash = new HashMap<String, Integer>();
+        for (int j = 0; j < b.ids.length; j++) {
+            if (!matchedB[j] && b.hashes[j] != null && !byHash.containsKey(b.hashes[j]))
+                byHash.put(b.hashes[j], j);
+        }
+        for (int i = 0; i < a.ids.length; i++) {
+            if (matchedA[i] || a.hashes[i] == null)
+                continue;
+            final Integer j = byHash.remove(a.hashes[i]);
+            if (j == null)
+                continue;
+
+            final Pair pair = new Pair();
+            pair.id = a.ids[i];
+            pair.other = b.ids[j];
+            diff.equivalent.add(pair);
+            matchedA[i] = true;
+            matchedB[j] = true;
+        }
+
+        diff.onlyHere = unmatched(a.ids, matchedA);
+        diff.onlyInOther = unmatched(b.ids, matchedB);
+        compare(db, diff.equivalent);
+
+        Metrics.timer("collection.diff").since(start);
+        return diff;
+    }
+
+    private static long[] unmatched(long[] ids, boolean[] matched) {
+        final long[] rest = new long[ids.length];
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (!matched[i])
+                rest[n++] = ids[i];
+        }
+        return Arrays.copyOf(rest, n);
+    }
+
+    /* Fill in the classification differences of equivalent entries */
+    private static void compare(IDBAccess db, List<Pair> pairs) {
+        final List<Long> ids = new ArrayList<Long>(2 * pairs.size());
+        for (Pair p : pairs) {
+            ids.add(p.id);
+            ids.add(p.other);
+        }
+
+        final Map<Long, Set<String>> taxonomies = new HashMap<Long, Set<String>>();
+        for (int i = 0; i < ids.size(); i += FETCH_BATCH) {
+            final JcQueryResult res = Database.execute(db, Collections.singletonList(
+                new Database.Statement(
+                    "MATCH (e:entry) WHERE id(e) IN {ids} " +
+                    "OPTIONAL MATCH (e)-[r]->(f:facet) " +
+                    "RETURN id(e) AS id, collect(type(r) + ':' + f.text) AS taxonomy")
+                    .param("ids", ids.subList(i, Math.min(ids.size(), i + FETCH_BATCH))))).get(0);
+
+            final List<BigDecimal> found = res.resultOf(new JcNumber("id"));
+            final List<List<?>> lists = res.resultOf(new JcCollection("taxonomy"));
+            for (int k = 0; k < found.size(); k++) {
+                final Set<String> taxonomy = new TreeSet<String>();
+                for (Object t : lists.get(k))
+                    taxonomy.add(t.toString());
+                taxonomies.put(found.get(k).longValue(), taxonomy);
+            }
+        }
+
+        for (Pair p : pairs) {
+            final Set<String> here = taxonomies.getOrDefault(p.id, Collections.emptySet());
+            final Set<String> there = taxonomies.getOrDefault(p.other, Collections.emptySet());
+            p.onlyHere = new ArrayList<String>(here);
+            p.onlyHere.removeAll(there);
+            p.onlyInOther = new ArrayList<String>(there);
+            p.onlyInOther.removeAll(here);
+        }
+    }
+
+    /**
+     * Statements that merge source into collection, one transaction each:
+     * entries that are only in source are copied or linked (see
+     * Collection.forkStatements), and equivalent entries get the
+     * classifications that only their source counterpart has, as far as
+     * the collection's taxonomy allows.
+     */
+    static List<Database.Statement> mergeStatements(IDBAccess db, Diff diff, String mode,
+            Set<String> types, Merge summary) {
+        final List<Long> missing = new ArrayList<Long>(diff.onlyInOther.length);
+        for (long id : diff.onlyInOther)
+            missing.add(id);
+        final List<Database.Statement> statements =
+            Collection.forkStatements(db, diff.collection, missing, mode);
+        summary.added = missing.size();
+
+        final List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        for (Pair p : diff.equivalent) {
+            if (p.onlyInOther.isEmpty())
+                continue;
+            final Map<String, Object> row = new HashMap<String, Object>();
+            row.put("id", p.id);
+            row.put("source", p.other);
+            rows.add(row);
+        }
+        summary.classified = rows.size();
+        for (int i = 0; i < rows.size(); i += Collection.FORK_BATCH)
+            statements.add(classifyStatement(types,
+                rows.subList(i, Math.min(rows.size(), i + Collection.FORK_BATCH))));
+        return statements;
+    }
+
+    /**
+     * Add the allowed classifications of p.source that p.id lacks, for rows
+     * {id, source}. One MERGE per allowed relation type, like copyStatement.
+     */
+    static Database.Statement classifyStatement(Set<String> types, List<Map<String, Object>> rows) {
+        final StringBuilder cypher = new StringBuilder(ChangeFeed.NEXT)
+            .append("UNWIND {rows} AS row ")
+            .append("MATCH (e:entry) WHERE id(e) = row.id ")
+            .append("MATCH (src:entry) WHERE id(src) = row.source ")
+            .append("OPTIONAL MATCH (src)-[r]->(f:facet) WHERE type(r) IN {types} ")
+            .append("WITH e, seq, collect({type: type(r), facet: f}) AS rels ");
+        for (String type : types) {
+            if (type.contains("`") || type.contains("'") || type.contains("\\"))
+                continue;
+            cypher.append("FOREACH (n IN [x IN rels WHERE x.type = '").append(type)
+                .append("' | x.facet] | MERGE (e)-[m:`").append(type)
+                .append("`]->(n) ON CREATE SET m.seq = seq) ");
+        }
+        cypher.append("SET e.seq = seq ")
+            .append(ChangeFeed.CONTAINING);
+
+        return new Database.Statement(cypher.toString())
+            .param("rows", new ArrayList<Map<String, Object>>(rows))
+            .param("types", new ArrayList<String>(types));
+    }
+}
@@ -1,40 +1,58 @@
 package se.lth.cs.connect.routes;
 
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest; // for sha256
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 // required for building queries and interpreting query results
+import iot.jcypher.database.IDBAccess;
 import iot.jcypher.graph.GrNode;
 import iot.jcypher.query.JcQueryResult;
 import iot.jcypher.query.api.IClause;
-import iot.jcypher.query.factories.clause.CREATE;
-import iot.jcypher.query.factories.clause.DO;
 import iot.jcypher.query.factories.clause.MATCH;
-import iot.jcypher.query.factories.clause.MERGE;
 import iot.jcypher.query.factories.clause.NATIVE;
-import iot.jcypher.query.factories.clause.OPTIONAL_MATCH;
 import iot.jcypher.query.factories.clause.RETURN;
 import iot.jcypher.query.factories.clause.WHERE;
-import iot.jcypher.query.factories.xpression.X;
 import iot.jcypher.query.values.JcBoolean;
+import iot.jcypher.query.values.JcCollection;
 import iot.jcypher.query.values.JcNode;
 import iot.jcypher.query.values.JcNumber;
 import iot.jcypher.query.values.JcRelation;
 import iot.jcypher.query.values.JcString;
 import ro.pippo.core.PippoSettings;
+import ro.pippo.core.route.RouteContext;
 import se.lth.cs.connect.Connect;
 import se.lth.cs.connect.Graph;
 import se.lth.cs.connect.RequestException;
 import se.lth.cs.connect.TrustLevel;
 import se.lth.cs.connect.modules.AccountSystem;
+import se.lth.cs.connect.modules.ChangeFeed;
 import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.FacetIndex;
+import se.lth.cs.connect.modules.Metrics;
 import se.lth.cs.connect.modules.TaxonomyDB;
+import se.lth.cs.connect.modules.TaxonomyIndex;
+import utils.RelatedEntries;
 
 /**
  Handles /entry routes for now.
@@ -42,6 +60,7 @@ import se.lth.cs.connect.modules.TaxonomyDB;
 
     (GET /{hash} --> {entry + relations})
     POST /new
+    POST /bulk
  */
 public class Entry extends BackendRouter {
 
@@ -60,6 +79,7 @@ public class Entry extends BackendRouter {
      *      "contact": "optional contact details",
      *      "reference": "reference for research",
      *      "collection": "optional collection id",
+     *      "onDuplicate": "create" (default), "link" or "reject",
      *      "serpClassification": {
      *          "people": ["turtle-like people", "snakes"],
      *          "improving": ["improving life quality"]
@@ -77,6 +97,10 @@ public class Entry extends BackendRouter {
         public String date;
         public Map<String,List<String>> serpClassification;
         public String project;
+        public String onDuplicate;
+
+        @JsonIgnore
+        private String hash;
 
         public boolean isResearch() {
             return "research".equals(entryType);
@@ -89,6 +113,16 @@ public class Entry extends BackendRouter {
         	if (contact == null)
         		contact = "";
 
+            if (onDuplicate != null && !ON_DUPLICATE.matcher(onDuplicate).matches())
+                return "Invalid onDuplicate";
+
+            if (serpClassification != null) {
+                for (String facet : serpClassification.keySet()) {
+                    if (!RELATION_TYPE.matcher(facet).matches())
+                        return "Invalid facet id";
+                }
+            }
+
             if (isResearch()) {
                 if (reference == null)
                     return "No reference(s).";
@@ -106,44 +140,62 @@ public class Entry extends BackendRouter {
             return "Invalid entryType";
         }
 
-        public List<IClause> taxonomy(JcNode entry) {
-            List<IClause> query = new ArrayList<IClause>();
+        /**
+         * Classification as relation type --> [{hash, text}], for use as a
+         * statement parameter.
+         */
+        public Map<String,List<Map<String,String>>> facets() {
+            Map<String,List<Map<String,String>>> facets =
+                new HashMap<String,List<Map<String,String>>>();
             if (serpClassification == null)
-                return query;
+                return facets;
 
-            java.util.Base64.Encoder base64 = java.util.Base64.getEncoder();
-            long fid = 0;
             for (String facet : serpClassification.keySet()) {
                 List<String> examples = serpClassification.get(facet);
-
                 if (examples == null)
                     continue;
 
+                List<Map<String,String>> list = new ArrayList<Map<String,String>>();
+                Set<String> seen = new HashSet<String>();
                 for (String txt : examples) {
                     if (txt == null)
                         continue;
 
-                    byte[] hashDigest = hasher().digest(bytes(txt));
-                    String hash = base64.encodeToString(hashDigest);
-
-                    JcNode fnode = new JcNode("f" + fid);
-                    query.add(MERGE.node(fnode).label("facet")
-                        .property("hash").value(hash)
-                        .property("text").value(txt));
-
-                    query.add(CREATE.node(entry)
-                        .relation().out().type(facet.toUpperCase())
-                        .node(fnode));
+                    // The same text twice would classify the entry twice
+                    String hash = BASE64.encodeToString(hasher().digest(bytes(txt)));
+                    if (!seen.add(hash))
+                        continue;
 
-                    fid++;
+                    Map<String,String> sample = new HashMap<String,String>();
+                    sample.put("hash", hash);
+                    sample.put("text", txt);
+                    list.add(sample);
                 }
+                facets.put(facet.toUpperCase(), list);
             }
-            return query;
+            return facets;
+        }
+
+        /**
+         * Entry node properties, for use as a statement parameter.
+         */
+        public Map<String,Object> properties() {
+            Map<String,Object> props = new HashMap<String,Object>();
+            props.put("hash", hash());
+            if (isResearch()) {
+                props.put("reference", reference);
+                props.put("doi", doi);
+            } else
+                props.put("description", description);
+            return props;
         }
 
         // hash(research) = sha256(reference || doi)
         // hash(challenge) = sha256(desc )
         public String hash() {
+            if (hash != null)
+                return hash;
+
             MessageDigest sha256 = hasher();
 
             if (isChallenge()) {
@@ -152,24 +204,104 @@ public class Entry extends BackendRouter {
 
             if (isResearch()) {
                 sha256.update(bytes(reference));
-                sha256.update(bytes(doi));
+                if (doi != null)
+                    sha256.update(bytes(doi));
             }
 
-            java.util.Base64.Encoder base64 = java.util.Base64.getEncoder();
-            return base64.encodeToString(sha256.digest());
+            hash = BASE64.encodeToString(sha256.digest());
+            return hash;
+        }
+
+        /**
+         * Whether an existing entry with the same hash should be used
+         * instead of creating a new one.
+         */
+        public boolean linkDuplicate() {
+            return "link".equals(onDuplicate);
+        }
+
+        public boolean rejectDuplicate() {
+            return "reject".equals(onDuplicate);
+        }
+
+        /**
+         * Row for insertStatements: {idx, type, props, facets}.
+         */
+        public Map<String,Object> row(int idx, boolean pending) {
+            Map<String,Object> props = properties();
+            if (pending)
+                props.put("pending", true);
+
+            Map<String,Object> row = new HashMap<String,Object>();
+            row.put("idx", idx);
+            row.put("type", entryType);
+            row.put("props", props);
+            row.put("facets", facets());
+            return row;
         }
+    }
+
+    /**
+     * A page of project entries. Nodes are Graph.Node objects, or maps with
+     * only the requested fields. next is the cursor for the following page,
+     * or null if this is the last page.
+     */
+    static class Page {
+        public Object[] nodes;
+        public Graph.Edge[] edges;
+        public String next;
+    }
+
+    /**
+     * Ids of entries matching a facet filter, at most limit of them after
+     * the cursor. nodes is only set when requested.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static class FilterResult {
+        public int total;
+        public long[] ids;
+        public Graph.Node[] nodes;
+        public String next;
+    }
+
+    static class FetchRequest {
+        public List<Long> ids;
+        public List<String> include;
+    }
+
+    /**
+     * An entry with the parts that were asked for: its classification as
+     * relation type --> [facet text] and the ids of collections containing
+     * it.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static class Fetched {
+        public Graph.Node entry;
+        public Map<String,List<String>> taxonomy;
+        public List<Long> collections;
+    }
 
-        public IClause build(JcNode node) {
-        	Graph.Node gg = new Graph.Node();
-        	gg.contact = contact;
-        	gg.reference = reference;
-        	gg.doi = doi;
-        	gg.date = date;
-        	gg.hash = hash();
-        	gg.description = description;
-        	gg.type = entryType;
-
-        	return gg.create(node);
+    /**
+     * Related entries and their similarity to the requested one.
+     */
+    static class Related {
+        public List<RelatedEntries.Neighbour> related = new ArrayList<RelatedEntries.Neighbour>();
+        public Graph.Node[] nodes;
+    }
+
+    /**
+     * Outcome of one item in a bulk submission: either the id of the new
+     * entry or the reason it was not created.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static class BulkResult {
+        public Long id;
+        public String error;
+        public Boolean duplicate;
+
+        public BulkResult(Long id, String error) {
+            this.id = id;
+            this.error = error;
         }
     }
 
@@ -188,32 +320,114 @@ public class Entry extends BackendRouter {
 
     @Override
     protected void setup(PippoSettings conf) {
-        // GET / --> {nodes:[], edges:[]}
+        final int bulkBatchSize = conf.getInteger("connect.entry.bulk.batch", 250);
+
+        // GET /?project=xyz&limit=50&after=CURSOR&order=id|date&fields=doi,reference
+        // --> {nodes:[], edges:[], next: CURSOR}, at most MAX_PAGE_SIZE entries
+        // per page; follow next until it is null for the whole project
         GET("", (rc) -> {
+            if (!rc.getParameter("ids").isEmpty()) {
+                final List<Long> ids = new ArrayList<Long>();
+                try {
+                    for (String id : rc.getParameter("ids").toString().split(","))
+                        ids.add(Long.parseLong(id.trim()));
+                } catch (NumberFormatException nfe) {
+                    throw new RequestException("'ids' must be comma separated integers");
+                }
+
+                final List<String> include = new ArrayList<String>();
+                if (!rc.getParameter("include").isEmpty()) {
+                    for (String part : rc.getParameter("include").toString().split(","))
+                        include.add(part.trim());
+                }
+
+                rc.json().send(fetch(rc.getLocal("db"), ids, include));
+                return;
+            }
+
             final String projectName = rc.getParameter("project").toString();
             if (projectName == null || projectName.isEmpty())
                 throw new RequestException("Must specify 'project' parameter");
 
-            JcNode proj = new JcNode("proj");
-            JcNode node = new JcNode("entry");
-            JcRelation rel = new JcRelation("rel");
+            rc.json().send(page(rc, projectName));
+        });
 
+        // GET /count?project=xyz --> {count: N}
+        GET("/count", (rc) -> {
+            final String projectName = rc.getParameter("project").toString();
+            if (projectName == null || projectName.isEmpty())
+                throw new RequestException("Must specify 'project' parameter");
+
+            final JcNode entry = new JcNode("e");
+            final JcNumber count = new JcNumber("count");
             JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
-                MATCH.node(proj).label("project").property("name").value(projectName),
-                MATCH.node(node).label("entry"),
-                WHERE.existsPattern(
-                    X.node(proj)
-                        .relation().type("EXTENDS")
+                MATCH.node().label("project").property("name").value(projectName)
+                    .relation().type("EXTENDS")
                     .node().label("collection")
-                        .relation().type("CONTAINS")
-                    .node(node))
-                    .AND().NOT().has(node.property("pending")),
-                OPTIONAL_MATCH.node(node).relation(rel).out().node().label("facet"),
-                RETURN.value(node),
-                RETURN.value(rel)
+                    .relation().type("CONTAINS")
+                    .node(entry).label("entry"),
+                WHERE.NOT().has(entry.property("pending")),
+                NATIVE.cypher("RETURN count(DISTINCT e) AS count")
             });
 
-            rc.json().send(new Graph(res.resultOf(node), res.resultOf(rel)));
+            rc.json().send("{\"count\": " + res.resultOf(count).get(0).longValue() + "}");
+        });
+
+        // GET /filter?project=xyz&q=EFFECT AND (SCOPE OR NOT IMPROVING)&limit=100&after=ID&nodes=true
+        // --> {total: N, ids: [], nodes: [], next: ID}
+        GET("/filter", (rc) -> {
+            final String projectName = rc.getParameter("project").toString();
+            if (projectName == null || projectName.isEmpty())
+                throw new RequestException("Must specify 'project' parameter");
+            final String q = rc.getParameter("q").toString();
+            if (q == null || q.trim().isEmpty())
+                throw new RequestException("Must specify 'q' parameter");
+
+            final int limit = rc.getParameter("limit").toInt(MAX_PAGE_SIZE);
+            if (limit < 1 || limit > MAX_PAGE_SIZE)
+                throw new RequestException("'limit' must be between 1 and " + MAX_PAGE_SIZE);
+            final long after = rc.getParameter("after").toLong(-1);
+
+            if (TaxonomyDB.taxonomyOf(TaxonomyDB.project(projectName)) == null)
+                throw new RequestException(404, "No such project.");
+
+            final long start = System.nanoTime();
+            final FacetIndex index = FacetIndex.of(projectName);
+            index.refresh(rc.getLocal("db"));
+            final long[] found = index.filter(q, TaxonomyIndex.ofProject(projectName));
+
+            // found is sorted, so skip to the first id after the cursor
+            int from = Arrays.binarySearch(found, after + 1);
+            if (from < 0)
+                from = -from - 1;
+            final int to = Math.min(found.length, from + limit);
+
+            final FilterResult result = new FilterResult();
+            result.total = found.length;
+            result.ids = Arrays.copyOfRange(found, from, to);
+            if (to < found.length)
+                result.next = Long.toString(found[to - 1]);
+
+            if (rc.getParameter("nodes").toBoolean(false)) {
+                final List<Long> ids = new ArrayList<Long>(result.ids.length);
+                for (long id : result.ids)
+                    ids.add(id);
+                result.nodes = nodes(rc.getLocal("db"), ids);
+            }
+
+            Metrics.timer("entry.filter").since(start);
+            rc.json().send(result);
+        });
+
+        // POST /fetch {ids: [1, 2], include: ["taxonomy", "collections"]}
+        // --> same as GET /?ids=1,2&include=taxonomy,collections
+        POST("/fetch", (rc) -> {
+            final FetchRequest req = rc.createEntityFromBody(FetchRequest.class);
+            if (req == null || req.ids == null)
+                throw new RequestException("Must provide 'ids'");
+
+            rc.json().send(fetch(rc.getLocal("db"), req.ids,
+                req.include == null ? Collections.<String>emptyList() : req.include));
         });
 
         // GET /{id} --> {entry}
@@ -264,6 +478,36 @@ public class Entry extends BackendRouter {
                 rc.json().send(new ReturnVal(cids.get(0).longValue()));
         });
 
+        // GET /{id}/related?limit=5
+        // --> {related: [{id, score}], nodes: [entry]}, best match first
+        GET("/{id}/related", (rc) -> {
+            final long id = rc.getParameter("id").toLong();
+            final int limit = rc.getParameter("limit").toInt(RelatedEntries.K);
+            if (limit < 1)
+                throw new RequestException("'limit' must be positive");
+
+            final List<Long> ids = new ArrayList<Long>();
+            final Map<Long,RelatedEntries.Neighbour> byId = new HashMap<Long,RelatedEntries.Neighbour>();
+            for (RelatedEntries.Neighbour n : RelatedEntries.of(rc.getLocal("db"), id)) {
+                ids.add(n.id);
+                byId.put(n.id, n);
+            }
+
+            // Neighbours may have been deleted or are pending since they were computed
+            final Related related = new Related();
+            final List<Graph.Node> nodes = new ArrayList<Graph.Node>();
+            for (Graph.Node node : nodes(rc.getLocal("db"), ids)) {
+                if (nodes.size() == limit)
+                    break;
+                if (node.pending)
+                    continue;
+                nodes.add(node);
+                related.related.add(byId.get(node.id));
+            }
+            related.nodes = nodes.toArray(new Graph.Node[nodes.size()]);
+            rc.json().send(related);
+        });
+
         // GET /{id}/taxonomy --> { category: [], ..., category: [] }
         GET("/{id}/taxonomy", (rc) -> {
             int id = rc.getParameter("id").toInt();
@@ -331,34 +575,35 @@ public class Entry extends BackendRouter {
                     throw new RequestException(403, "You don't have access to that collection.");
             }
 
-            JcRelation rel = new JcRelation("rel");
-            Database.query(rc.getLocal("db"), new IClause[]{
-                MATCH.node(entry).label("entry").relation(rel).node().label("facet"),
-                WHERE.valueOf(entry.id()).EQUALS(id),
-                DO.DELETE(rel)
-            });
+            Map<String,Object> props = e.properties();
+            props.put("contact", e.contact);
 
-            List<IClause> taxonomy = e.taxonomy(entry);
-            ArrayList<IClause> update = new ArrayList<IClause>();
-            update.add(DO.SET(entry.property("contact")).to(e.contact));
-            update.add(DO.SET(entry.property("hash")).to(e.hash()));
-            if (e.isResearch()) {
-                update.add(DO.SET(entry.property("reference")).to(e.reference));
-                update.add(DO.SET(entry.property("doi")).to(e.doi));
-            } else
-                update.add(DO.SET(entry.property("description")).to(e.description));
-
-            IClause[] query = new IClause[taxonomy.size() + update.size() + 2];
-            query[0] = MATCH.node(entry).label("entry");
-            query[1] = WHERE.valueOf(entry.id()).EQUALS(id);
-
-            for (int i = 0; i < update.size(); i++)
-                query[2 + i] = update.get(i);
-
-            for (int i = 0; i < taxonomy.size(); i++)
-                query[2 + update.size() + i] = taxonomy.get(i);
+            // Only relations that are not requested are deleted, and only
+            // missing ones are created, all in one transaction
+            Map<String,List<Map<String,String>>> facets = e.facets();
+            List<String> keys = new ArrayList<String>();
+            for (Map.Entry<String,List<Map<String,String>>> type : facets.entrySet()) {
+                for (Map<String,String> facet : type.getValue())
+                    keys.add(type.getKey() + ":" + facet.get("hash"));
+            }
 
-            Database.query(rc.getLocal("db"), query);
+            StringBuilder cypher = new StringBuilder(ChangeFeed.NEXT)
+                .append("MATCH (e:entry) WHERE id(e) = {id} ")
+                .append("OPTIONAL MATCH (e)-[r]->(f:facet) ")
+                .append("WITH e, seq, ")
+                .append("collect(CASE WHEN NOT type(r) + ':' + f.hash IN {keys} THEN r END) AS stale, ")
+                .append("collect(type(r) + ':' + f.hash) AS existing ")
+                .append("FOREACH (r IN stale | DELETE r) ")
+                .append("SET e += {props}, e.seq = seq ");
+            classify(cypher, "{facets}", facets.keySet(), "existing");
+            cypher.append(ChangeFeed.CONTAINING);
+
+            Database.execute(rc.getLocal("db"), Collections.singletonList(
+                new Database.Statement(cypher.toString())
+                    .param("id", id)
+                    .param("props", props)
+                    .param("keys", keys)
+                    .param("facets", facets)));
 
             rc.json().send("{\"message\": \"Ok\"}");
         });
@@ -390,9 +635,6 @@ public class Entry extends BackendRouter {
             if (err != null)
                 throw new RequestException(err);
 
-            // Node is the new node
-            JcNode entry = new JcNode("entry");
-            JcNode unode = new JcNode("user");
             JcNode coll = new JcNode("collection");
 
             int access = Database.query(rc.getLocal("db"), new IClause[] {
@@ -406,36 +648,560 @@ public class Entry extends BackendRouter {
             if (access == 0)
                 throw new RequestException(403, "You don't have access to that collection.");
 
-            List<IClause> taxonomy = e.taxonomy(entry);
-            if (tagAsPending)
-                taxonomy.add(DO.SET(entry.property("pending")).to(true));
-
-            IClause[] query = new IClause[taxonomy.size() + 5 + 1];
-            query[0] = MATCH.node(unode).label("user").property("email").value(user.email);
-            query[1] = MATCH.node(coll).label("collection");
-            query[2] = WHERE.valueOf(coll.id()).EQUALS(collectionId);
-            query[3] = e.build(entry);
-            query[4] = CREATE.node(coll).relation().out().type("CONTAINS").node(entry);
+            if (e.linkDuplicate() || e.rejectDuplicate()) {
+                Long existing = duplicates(rc.getLocal("db"), collectionId,
+                    Collections.singleton(e.hash())).get(e.hash());
 
-            for (int i = 0; i < taxonomy.size(); i++)
-                query[5 + i] = taxonomy.get(i);
+                if (existing != null && e.rejectDuplicate()) {
+                    rc.status(409).json().send("{\"message\": \"Duplicate entry\", \"id\": " + existing + "}");
+                    return;
+                }
 
-            query[taxonomy.size() + 5] = NATIVE.cypher("RETURN id(entry) as id");
+                if (existing != null) {
+                    Database.execute(rc.getLocal("db"), Collections.singletonList(
+                        linkStatement(collectionId, Collections.singletonList(link(0, existing)))));
+                    rc.json().send("{\"message\": \"Ok\", \"id\": " + existing + ", \"duplicate\": true}");
+                    return;
+                }
+            }
 
-            JcQueryResult jqr = Database.query(rc.getLocal("db"), query);
+            List<Map<String,Object>> rows = Collections.singletonList(e.row(0, tagAsPending));
+            JcQueryResult jqr = Database.execute(rc.getLocal("db"),
+                insertStatements(collectionId, rows)).get(0);
             String id = jqr.resultOf(new JcNumber("id")).get(0).toString();
 
             // TODO: Return something proper
             rc.json().send("{\"message\": \"Ok\", \"id\": " + id + "}");
         });
+
+        // POST /bulk?collection=ID [NewEntry, ..., NewEntry] (or one per line)
+        // --> [{id: 12}, {error: "No reference(s)."}, ...]
+        POST("/bulk", (rc) -> {
+            if (rc.getSession("email") == null)
+                throw new RequestException("Must be logged in.");
+
+            AccountSystem.Account user = AccountSystem.findByEmail(rc.getSession("email"));
+            if (!TrustLevel.authorize(user.trust, TrustLevel.USER))
+                throw new RequestException(403, "Please verify account before submitting entries.");
+
+            final int collectionId;
+            try {
+                collectionId = Integer.parseInt(rc.getParameter("collection").toString());
+            } catch (NumberFormatException nfe) {
+                throw new RequestException("'collection' must be an integer");
+            }
+
+            final JcNode coll = new JcNode("collection");
+            int access = Database.query(rc.getLocal("db"), new IClause[] {
+                MATCH.node().label("user").property("email").value(user.email)
+                    .relation().type("MEMBER_OF")
+                    .node(coll).label("collection"),
+                WHERE.valueOf(coll.id()).EQUALS(collectionId),
+                NATIVE.cypher("RETURN true as ok")
+            }).resultOf(new JcBoolean("ok")).size();
+
+            if (access == 0)
+                throw new RequestException(403, "You don't have access to that collection.");
+
+            final boolean tagAsPending = !TrustLevel.authorize(user.trust, TrustLevel.VERIFIED);
+            final BulkWriter writer = new BulkWriter(rc.getLocal("db"), collectionId,
+                tagAsPending, bulkBatchSize);
+            rc.json().send(writer.write(rc));
+        });
     }
 
-    private static MessageDigest hasher() {
+    /* Facet ids become relation types, which can't be passed as parameters */
+    private static final Pattern RELATION_TYPE = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private static final Pattern ON_DUPLICATE = Pattern.compile("create|link|reject");
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * One page of project entries, ordered by (key, id) where the key is
+     * the creation time for order=date and constant for order=id. The
+     * date field is free text given by the submitter and can't be ordered
+     * on. The cursor is the (key, id) of the last entry on the previous
+     * page.
+     *
+     * Every page sorts all of the project's entries before skipping to the
+     * cursor, so the time per page grows with the size of the project.
+     */
+    private static Page page(RouteContext rc, String project) {
+        final String order = rc.getParameter("order").toString("id");
+        if (!"id".equals(order) && !"date".equals(order))
+            throw new RequestException("'order' must be id or date");
+
+        final int limit = rc.getParameter("limit").toInt(MAX_PAGE_SIZE);
+        if (limit < 1 || limit > MAX_PAGE_SIZE)
+            throw new RequestException("'limit' must be between 1 and " + MAX_PAGE_SIZE);
+
+        long afterKey = -1, afterId = -1;
+        final String after = rc.getParameter("after").toString();
+        if (after != null && !after.isEmpty()) {
+            try {
+                String[] parts = after.split(":");
+                afterKey = Long.parseLong(parts[0]);
+                afterId = Long.parseLong(parts[1]);
+            } catch (RuntimeException re) {
+                throw new RequestException("Invalid 'after' cursor");
+            }
+        }
+
+        Set<String> fields = null;
+        final String projection = rc.getParameter("fields").toString();
+        if (projection != null && !projection.isEmpty()) {
+            fields = new HashSet<String>();
+            for (String field : projection.split(","))
+                fields.add(field.trim());
+            fields.add("id");
+        }
+
+        final String key = "date".equals(order) ? "coalesce(e.created, 0)" : "0";
+        final String cypher =
+            "MATCH (:project {name: {project}})<-[:EXTENDS]-(:collection)-[:CONTAINS]->(e:entry) " +
+            "WHERE NOT has(e.pending) " +
+            "WITH DISTINCT e, " + key + " AS key " +
+            "WHERE key > {key} OR (key = {key} AND id(e) > {id}) " +
+            "WITH e, key ORDER BY key, id(e) LIMIT {limit} " +
+            "OPTIONAL MATCH (e)-[r]->(:facet) " +
+            "RETURN e, key, r";
+
+        final JcQueryResult res = Database.execute(rc.getLocal("db"), Collections.singletonList(
+            new Database.Statement(cypher)
+                .param("project", project)
+                .param("key", afterKey)
+                .param("id", afterId)
+                .param("limit", limit))).get(0);
+
+        final List<GrNode> nodes = res.resultOf(new JcNode("e"));
+        final List<BigDecimal> keys = res.resultOf(new JcNumber("key"));
+
+        // Rows repeat the entry once per relation, and need not be in order
+        final Map<Long,Long> keyOf = new HashMap<Long,Long>();
+        final Map<Long,GrNode> byId = new HashMap<Long,GrNode>();
+        for (int i = 0; i < nodes.size(); i++) {
+            keyOf.put(nodes.get(i).getId(), keys.get(i).longValue());
+            byId.put(nodes.get(i).getId(), nodes.get(i));
+        }
+        final List<Long> ids = new ArrayList<Long>(byId.keySet());
+        ids.sort((a, b) -> {
+            int cmp = Long.compare(keyOf.get(a), keyOf.get(b));
+            return cmp != 0 ? cmp : Long.compare(a, b);
+        });
+
+        final ObjectMapper mapper = new ObjectMapper();
+        final Page page = new Page();
+        page.nodes = new Object[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            Graph.Node node = new Graph.Node(byId.get(ids.get(i)));
+            if (fields == null) {
+                page.nodes[i] = node;
+                continue;
+            }
+
+            Map<?,?> projected = mapper.convertValue(node, Map.class);
+            projected.keySet().retainAll(fields);
+            page.nodes[i] = projected;
+        }
+        page.edges = Graph.Edge.fromList(res.resultOf(new JcRelation("r")));
+
+        if (ids.size() == limit) {
+            final long last = ids.get(ids.size() - 1);
+            page.next = keyOf.get(last) + ":" + last;
+        }
+        return page;
+    }
+
+    /**
+     * Entries by id, keyed by id in the order requested, with taxonomy
+     * and/or collections included if asked for. Everything is read in one
+     * query. Ids of missing entries are left out.
+     */
+    private static Map<Long,Fetched> fetch(IDBAccess db, List<Long> ids, List<String> include) {
+        if (ids.size() > MAX_PAGE_SIZE)
+            throw new RequestException("At most " + MAX_PAGE_SIZE + " ids per request");
+
+        final boolean withTaxonomy = include.contains("taxonomy");
+        final boolean withCollections = include.contains("collections");
+        for (String part : include) {
+            if (!"taxonomy".equals(part) && !"collections".equals(part))
+                throw new RequestException("'include' must be taxonomy and/or collections");
+        }
+
+        final StringBuilder cypher = new StringBuilder("MATCH (e:entry) WHERE id(e) IN {ids} ");
+        final List<String> returns = new ArrayList<String>();
+        returns.add("e");
+        if (withTaxonomy) {
+            cypher.append("OPTIONAL MATCH (e)-[r]->(f:facet) ")
+                .append("WITH e, collect(type(r) + ':' + f.text) AS taxonomy ");
+            returns.add("taxonomy");
+        }
+        if (withCollections) {
+            cypher.append("OPTIONAL MATCH (c:collection)-[:CONTAINS]->(e) ")
+                .append("WITH ").append(String.join(", ", returns))
+                .append(", collect(id(c)) AS collections ");
+            returns.add("collections");
+        }
+        cypher.append("RETURN ").append(String.join(", ", returns));
+
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(cypher.toString()).param("ids", ids))).get(0);
+
+        final List<GrNode> nodes = res.resultOf(new JcNode("e"));
+        final List<List<?>> taxonomies = withTaxonomy ?
+            res.resultOf(new JcCollection("taxonomy")) : null;
+        final List<List<?>> collections = withCollections ?
+            res.resultOf(new JcCollection("collections")) : null;
+
+        final Map<Long,Fetched> byId = new HashMap<Long,Fetched>();
+        for (int i = 0; i < nodes.size(); i++) {
+            final Fetched f = new Fetched();
+            f.entry = new Graph.Node(nodes.get(i));
+
+            if (withTaxonomy) {
+                f.taxonomy = new HashMap<String,List<String>>();
+                // "TYPE:text"; relation types never contain ':'
+                for (Object pair : taxonomies.get(i)) {
+                    final String rel = pair.toString();
+                    final String type = rel.substring(0, rel.indexOf(':'));
+                    if (!f.taxonomy.containsKey(type))
+                        f.taxonomy.put(type, new ArrayList<String>());
+                    f.taxonomy.get(type).add(rel.substring(type.length() + 1));
+                }
+            }
+
+            if (withCollections) {
+                f.collections = new ArrayList<Long>();
+                for (Object id : collections.get(i))
+                    f.collections.add(((Number)id).longValue());
+            }
+            byId.put(f.entry.id, f);
+        }
+
+        final Map<Long,Fetched> ordered = new LinkedHashMap<Long,Fetched>();
+        for (Long id : ids) {
+            if (byId.containsKey(id))
+                ordered.put(id, byId.get(id));
+        }
+        return ordered;
+    }
+
+    /**
+     * Entry nodes by id, in the order of ids. Ids of missing entries are
+     * skipped.
+     */
+    static Graph.Node[] nodes(IDBAccess db, List<Long> ids) {
+        final List<GrNode> found = Database.execute(db, Collections.singletonList(
+            new Database.Statement("MATCH (e:entry) WHERE id(e) IN {ids} RETURN e")
+                .param("ids", ids))).get(0).resultOf(new JcNode("e"));
+
+        final Map<Long,Graph.Node> byId = new HashMap<Long,Graph.Node>();
+        for (GrNode node : found)
+            byId.put(node.getId(), new Graph.Node(node));
+
+        final List<Graph.Node> nodes = new ArrayList<Graph.Node>(ids.size());
+        for (Long id : ids) {
+            if (byId.containsKey(id))
+                nodes.add(byId.get(id));
+        }
+        return nodes.toArray(new Graph.Node[nodes.size()]);
+    }
+
+    /**
+     * Create the items of a bulk request body while it is read: either a
+     * json array or a sequence of json objects, such as newline delimited
+     * json. Each item is mapped and validated on its own, and valid items
+     * are written batch items at a time, one transaction per batch, so only
+     * one batch is held in memory.
+     */
+    static class BulkWriter {
+        private final IDBAccess db;
+        private final long collection;
+        private final boolean pending;
+        private final int batch;
+
+        private final List<BulkResult> results = new ArrayList<BulkResult>();
+        private final List<NewEntry> entries = new ArrayList<NewEntry>();
+        private final List<Integer> indices = new ArrayList<Integer>();
+
+        BulkWriter(IDBAccess db, long collection, boolean pending, int batch) {
+            this.db = db;
+            this.collection = collection;
+            this.pending = pending;
+            this.batch = batch;
+        }
+
+        /**
+         * Results in the order of the items. A body that is not json fails
+         * the request; json that breaks off after some items is reported as
+         * an error of the item where it broke off, the items before it are
+         * kept.
+         */
+        List<BulkResult> write(RouteContext rc) {
+            final ObjectMapper mapper = new ObjectMapper();
+            try (JsonParser parser = mapper.getFactory().createParser(
+                    rc.getRequest().getHttpServletRequest().getInputStream())) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_ARRAY)
+                    token = parser.nextToken();
+
+                while (token != null && token != JsonToken.END_ARRAY) {
+                    add(mapper, mapper.readTree(parser));
+                    token = parser.nextToken();
+                }
+            } catch (IOException ioe) {
+                if (results.isEmpty() && entries.isEmpty())
+                    throw new RequestException("Malformed json: " + ioe.getMessage());
+                flush();
+                results.add(new BulkResult(null, "Malformed json: " + ioe.getMessage()));
+                return results;
+            }
+            flush();
+            return results;
+        }
+
+        private void add(ObjectMapper mapper, JsonNode item) {
+            final int idx = results.size();
+            results.add(null);
+
+            NewEntry e;
+            try {
+                e = mapper.treeToValue(item, NewEntry.class);
+            } catch (JsonProcessingException jpe) {
+                results.set(idx, new BulkResult(null, "Invalid entry: " + jpe.getOriginalMessage()));
+                return;
+            }
+
+            final String err = e.validate();
+            if (err != null) {
+                results.set(idx, new BulkResult(null, err));
+                return;
+            }
+
+            entries.add(e);
+            indices.add(idx);
+            if (entries.size() >= batch)
+                flush();
+        }
+
+        /* Write the buffered items in one transaction, duplicates replaced
+           by links to the existing entries (or dropped). An item whose hash
+           was already inserted by this batch gets the result of that item */
+        private void flush() {
+            if (entries.isEmpty())
+                return;
+
+            Map<String,Long> existing = Collections.emptyMap();
+            final Set<String> hashes = new HashSet<String>();
+            for (NewEntry e : entries) {
+                if (e.linkDuplicate() || e.rejectDuplicate())
+                    hashes.add(e.hash());
+            }
+            if (!hashes.isEmpty())
+                existing = duplicates(db, collection, hashes);
+
+            final List<Map<String,Object>> inserts = new ArrayList<Map<String,Object>>();
+            final List<Map<String,Object>> links = new ArrayList<Map<String,Object>>();
+            final Map<String,Integer> inserted = new HashMap<String,Integer>();  // hash --> idx
+            final Map<Integer,NewEntry> repeats = new LinkedHashMap<Integer,NewEntry>();
+            final Map<Integer,Integer> firsts = new HashMap<Integer,Integer>();
+            for (int i = 0; i < entries.size(); i++) {
+                final NewEntry e = entries.get(i);
+                final int idx = indices.get(i);
+                final boolean dedupe = e.linkDuplicate() || e.rejectDuplicate();
+                final Long dup = dedupe ? existing.get(e.hash()) : null;
+                if (dup == null && dedupe && inserted.containsKey(e.hash())) {
+                    repeats.put(idx, e);
+                    firsts.put(idx, inserted.get(e.hash()));
+                } else if (dup == null) {
+                    inserts.add(e.row(idx, pending));
+                    inserted.putIfAbsent(e.hash(), idx);
+                } else if (e.rejectDuplicate())
+                    results.set(idx, new BulkResult(dup, "Duplicate entry"));
+                else
+                    links.add(link(idx, dup));
+            }
+
+            final List<Database.Statement> statements = insertStatements(collection, inserts);
+            if (!links.isEmpty())
+                statements.add(linkStatement(collection, links));
+
+            try {
+                for (JcQueryResult res : Database.execute(db, statements)) {
+                    List<BigDecimal> idx = res.resultOf(new JcNumber("idx"));
+                    List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+                    for (int i = 0; i < idx.size(); i++)
+                        results.set(idx.get(i).intValue(), new BulkResult(ids.get(i).longValue(), null));
+                }
+                for (Map<String,Object> row : links) {
+                    final BulkResult linked = results.get((Integer)row.get("idx"));
+                    if (linked != null)
+                        linked.duplicate = true;
+                }
+            } catch (RequestException re) {
+                for (Map<String,Object> row : inserts)
+                    results.set((Integer)row.get("idx"), new BulkResult(null, re.getMessage()));
+                for (Map<String,Object> row : links)
+                    results.set((Integer)row.get("idx"), new BulkResult(null, re.getMessage()));
+            }
+
+            for (Map.Entry<Integer,NewEntry> repeat : repeats.entrySet()) {
+                final BulkResult first = results.get(firsts.get(repeat.getKey()));
+                final BulkResult result;
+                if (first == null || first.id == null)
+                    result = new BulkResult(null, first == null ? "Not written" : first.error);
+                else if (repeat.getValue().rejectDuplicate())
+                    result = new BulkResult(first.id, "Duplicate entry");
+                else {
+                    result = new BulkResult(first.id, null);
+                    result.duplicate = true;
+                }
+                results.set(repeat.getKey(), result);
+            }
+
+            entries.clear();
+            indices.clear();
+        }
+    }
+
+    /**
+     * Create entries from rows (see NewEntry.row) in a collection. There is
+     * one statement per entry type, since labels can't be parameterized.
+     * Each statement creates its entries and their classifications with a
+     * single UNWIND, and returns (idx, id) for every created entry.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Database.Statement> insertStatements(long collection,
+            List<Map<String,Object>> rows) {
+        final Map<String,List<Map<String,Object>>> byType =
+            new HashMap<String,List<Map<String,Object>>>();
+        final Map<String,Set<String>> relations = new HashMap<String,Set<String>>();
+
+        for (Map<String,Object> row : rows) {
+            final String type = (String)row.get("type");
+            if (!byType.containsKey(type)) {
+                byType.put(type, new ArrayList<Map<String,Object>>());
+                relations.put(type, new HashSet<String>());
+            }
+            byType.get(type).add(row);
+            relations.get(type).addAll(((Map<String,?>)row.get("facets")).keySet());
+        }
+
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        for (String type : byType.keySet()) {
+            StringBuilder cypher = new StringBuilder(ChangeFeed.NEXT)
+                .append("MATCH (c:collection) WHERE id(c) = {collection} ")
+                .append("SET c.version = seq, c.entries = c.entries + size({rows}) ")
+                .append("WITH c, seq ")
+                .append("UNWIND {rows} AS row ")
+                .append("CREATE (e:entry:").append(type).append(") ")
+                .append("SET e += row.props, e.created = timestamp(), e.seq = seq ")
+                .append("CREATE (c)-[:CONTAINS {seq: seq}]->(e) ");
+            classify(cypher, "row.facets", relations.get(type));
+            cypher.append("RETURN row.idx AS idx, id(e) AS id");
+
+            statements.add(new Database.Statement(cypher.toString())
+                .param("collection", collection)
+                .param("rows", byType.get(type)));
+        }
+        return statements;
+    }
+
+    /**
+     * Row for linkStatement: {idx, id}.
+     */
+    static Map<String,Object> link(int idx, long id) {
+        Map<String,Object> row = new HashMap<String,Object>();
+        row.put("idx", idx);
+        row.put("id", id);
+        return row;
+    }
+
+    /**
+     * Add existing entries to a collection, returning (idx, id) per row.
+     */
+    static Database.Statement linkStatement(long collection, List<Map<String,Object>> rows) {
+        return new Database.Statement(ChangeFeed.NEXT +
+            "MATCH (c:collection) WHERE id(c) = {collection} " +
+            "SET c.version = seq " +
+            "WITH c, seq " +
+            "UNWIND {rows} AS row " +
+            "MATCH (e:entry) WHERE id(e) = row.id " +
+            "MERGE (c)-[r:CONTAINS]->(e) ON CREATE SET r.seq = seq, c.entries = c.entries + 1 " +
+            "RETURN row.idx AS idx, id(e) AS id")
+            .param("collection", collection)
+            .param("rows", rows);
+    }
+
+    /**
+     * Accepted entries in the project of collection with any of the given
+     * hashes, as hash --> lowest id. Copies (e.copyOf) are never duplicates,
+     * see Collection.copyStatement. Served by the index on :entry(hash),
+     * see Bootstrap.createIndexes.
+     */
+    static Map<String,Long> duplicates(IDBAccess db, long collection, Set<String> hashes) {
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (e:entry) WHERE e.hash IN {hashes} " +
+                "AND NOT has(e.pending) AND NOT has(e.copyOf) " +
+                "MATCH (c:collection)-[:EXTENDS]->(:project)<-[:EXTENDS]-(:collection)-[:CONTAINS]->(e) " +
+                "WHERE id(c) = {collection} " +
+                "RETURN e.hash AS hash, min(id(e)) AS id")
+                .param("collection", collection)
+                .param("hashes", new ArrayList<String>(hashes)))).get(0);
+
+        final List<String> found = res.resultOf(new JcString("hash"));
+        final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+        final Map<String,Long> existing = new HashMap<String,Long>();
+        for (int i = 0; i < found.size(); i++)
+            existing.put(found.get(i), ids.get(i).longValue());
+        return existing;
+    }
+
+    /**
+     * Append clauses that classify e according to facets, an expression
+     * for a map of relation type --> [{hash, text}]. Relation types can't
+     * be parameterized, so there is one FOREACH per type. Relations are
+     * stamped with seq, see ChangeFeed.
+     */
+    static void classify(StringBuilder cypher, String facets, Set<String> relations) {
+        classify(cypher, facets, relations, null);
+    }
+
+    /**
+     * Like classify, but skip facets whose "TYPE:hash" key is in existing,
+     * an expression for a list of keys that e is already classified with.
+     */
+    static void classify(StringBuilder cypher, String facets, Set<String> relations,
+            String existing) {
+        for (String rel : relations) {
+            String list = "coalesce(" + facets + ".`" + rel + "`, [])";
+            if (existing != null)
+                list = "filter(x IN " + list + " WHERE NOT '" + rel + ":' + x.hash IN " +
+                    existing + ")";
+
+            cypher.append("FOREACH (f IN ").append(list).append(" | ")
+                .append("MERGE (n:facet {hash: f.hash, text: f.text}) ")
+                .append("CREATE (e)-[:`").append(rel).append("` {seq: seq}]->(n)) ");
+        }
+    }
+
+    private static final java.util.Base64.Encoder BASE64 = java.util.Base64.getEncoder();
+
+    /* MessageDigest isn't thread safe, so keep one per request thread */
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
         try {
             return MessageDigest.getInstance("SHA-256");
         } catch (java.security.NoSuchAlgorithmException nsa) {
             throw new RequestException("Platform doesn't support SHA-256");
         }
+    });
+
+    private static MessageDigest hasher() {
+        MessageDigest sha256 = SHA256.get();
+        sha256.reset();
+        return sha256;
     }
 
     private static byte[] bytes(String str) {
@@ -0,0 +1,336 @@
+package se.lth.cs.connect.routes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcNumber;
+import se.lth.cs.connect.RequestException;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Export;
+import se.lth.cs.connect.modules.Metrics;
+import se.lth.cs.connect.modules.TaxonomyIndex;
+
+/**
+ * Create entries in a collection from the rows of an export (see Export),
+ * NDJSON or CSV, read from the request body while it arrives.
+ *
+ * Each row is validated on its own, like POST /v1/entry/bulk, and its
+ * classification is checked against the effective taxonomy of the
+ * collection. Valid rows are written batch rows at a time, one transaction
+ * per batch, so only one batch is held in memory. Rows that fail are
+ * reported by their number, the first row after a csv header being 1.
+ */
+class EntryImport {
+    /* Row errors reported in the summary; later ones are only counted */
+    static final int MAX_ERRORS = 1000;
+
+    static class RowError {
+        public long row;
+        public String error;
+
+        RowError(long row, String error) {
+            this.row = row;
+            this.error = error;
+        }
+    }
+
+    static class Summary {
+        public long rows, created, linked, failed;
+        public List<RowError> errors = new ArrayList<RowError>();
+    }
+
+    private final IDBAccess db;
+    private final long collection;
+    private final TaxonomyIndex taxonomy;
+    private final boolean pending;
+    private final String onDuplicate;
+    private final int batch;
+
+    private final Summary summary = new Summary();
+    private final List<Entry.NewEntry> entries = new ArrayList<Entry.NewEntry>();
+    private final List<Long> numbers = new ArrayList<Long>();
+
+    EntryImport(IDBAccess db, long collection, TaxonomyIndex taxonomy, boolean pending,
+            String onDuplicate, int batch) {
+        this.db = db;
+        this.collection = collection;
+        this.taxonomy = taxonomy;
+        this.pending = pending;
+        this.onDuplicate = onDuplicate;
+        this.batch = batch;
+    }
+
+    Summary ndjson(InputStream in) {
+        final long start = System.nanoTime();
+        final ObjectMapper mapper = new ObjectMapper();
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            JsonToken token = parser.nextToken();
+            while (token != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    flush();
+                    error(summary.rows + 1, "Malformed json: expected an object per line");
+                    return done(start);
+                }
+                add(fromJson(mapper.readTree(parser)));
+                token = parser.nextToken();
+            }
+        } catch (IOException ioe) {
+            flush();
+            error(summary.rows + 1, "Malformed json: " + ioe.getMessage());
+            return done(start);
+        }
+        flush();
+        return done(start);
+    }
+
+    Summary csv(InputStream in) {
+        final long start = System.nanoTime();
+        try (Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            final List<String> header = record(reader);
+            if (header == null)
+                return done(start);
+
+            List<String> cells;
+            while ((cells = record(reader)) != null) {
+                if (cells.size() == 1 && cells.get(0).isEmpty())
+                    continue;
+                add(fromCsv(header, cells));
+            }
+        } catch (IOException ioe) {
+            flush();
+            error(summary.rows + 1, "Malformed csv: " + ioe.getMessage());
+            return done(start);
+        }
+        flush();
+        return done(start);
+    }
+
+    private Summary done(long start) {
+        Metrics.timer("collection.import").since(start);
+        return summary;
+    }
+
+    private static Entry.NewEntry fromJson(JsonNode row) {
+        final Entry.NewEntry e = new Entry.NewEntry();
+        e.entryType = text(row, "type");
+        e.description = text(row, "description");
+        e.reference = text(row, "reference");
+        e.doi = text(row, "doi");
+        e.contact = text(row, "contact");
+        e.serpClassification = new HashMap<String, List<String>>();
+
+        final JsonNode classification = row.get("classification");
+        if (classification != null && classification.isObject()) {
+            final Iterator<Map.Entry<String, JsonNode>> it = classification.fields();
+            while (it.hasNext()) {
+                final Map.Entry<String, JsonNode> facet = it.next();
+                final List<String> texts = new ArrayList<String>();
+                if (facet.getValue().isArray()) {
+                    for (JsonNode t : facet.getValue())
+                        texts.add(t.asText());
+                } else if (!facet.getValue().isNull())
+                    texts.add(facet.getValue().asText());
+                e.serpClassification.put(facet.getKey(), texts);
+            }
+        }
+        return e;
+    }
+
+    private static String text(JsonNode row, String field) {
+        final JsonNode value = row.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    /* Columns that are not entry fields are facets, see Export.splitTexts */
+    private static Entry.NewEntry fromCsv(List<String> header, List<String> cells) {
+        final Entry.NewEntry e = new Entry.NewEntry();
+        e.serpClassification = new HashMap<String, List<String>>();
+        for (int i = 0; i < header.size() && i < cells.size(); i++) {
+            final String cell = cells.get(i);
+            final String value = cell.isEmpty() ? null : cell;
+            switch (header.get(i)) {
+            case "type": e.entryType = value; break;
+            case "description": e.description = value; break;
+            case "reference": e.reference = value; break;
+            case "doi": e.doi = value; break;
+            case "contact": e.contact = value; break;
+            case "id": case "hash": case "date": case "pending": break;
+            default:
+                if (value == null)
+                    break;
+                e.serpClassification.put(header.get(i), Export.splitTexts(value));
+            }
+        }
+        return e;
+    }
+
+    private void add(Entry.NewEntry e) {
+        final long row = ++summary.rows;
+        e.onDuplicate = onDuplicate;
+
+        String err = e.validate();
+        if (err == null) {
+            for (String facet : e.serpClassification.keySet()) {
+                if (!taxonomy.contains(facet)) {
+                    err = "Facet not in taxonomy: " + facet;
+                    break;
+                }
+            }
+        }
+        if (err != null) {
+            error(row, err);
+            return;
+        }
+
+        entries.add(e);
+        numbers.add(row);
+        if (entries.size() >= batch)
+            flush();
+    }
+
+    private void error(long row, String error) {
+        summary.failed++;
+        if (summary.errors.size() < MAX_ERRORS)
+            summary.errors.add(new RowError(row, error));
+    }
+
+    /* Write the buffered rows in one transaction. With link or reject, a
+       hash that repeats within the batch is only inserted once */
+    private void flush() {
+        if (entries.isEmpty())
+            return;
+
+        final boolean dedupe = entries.get(0).linkDuplicate() || entries.get(0).rejectDuplicate();
+        Map<String, Long> existing = new HashMap<String, Long>();
+        if (dedupe) {
+            final Set<String> hashes = new HashSet<String>();
+            for (Entry.NewEntry e : entries)
+                hashes.add(e.hash());
+            existing = Entry.duplicates(db, collection, hashes);
+        }
+
+        final List<Map<String, Object>> inserts = new ArrayList<Map<String, Object>>();
+        final List<Map<String, Object>> links = new ArrayList<Map<String, Object>>();
+        final Map<String, Long> inserted = new HashMap<String, Long>();  // hash --> row
+        final List<Long> repeats = new ArrayList<Long>();  // rows linked to one inserted here
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry.NewEntry e = entries.get(i);
+            final Long dup = existing.get(e.hash());
+            final Long first = dedupe ? inserted.get(e.hash()) : null;
+            if (dup != null && e.rejectDuplicate())
+                error(numbers.get(i), "Duplicate of entry " + dup);
+            else if (dup != null)
+                links.add(Entry.link(i, dup));
+            else if (first != null && e.rejectDuplicate())
+                error(numbers.get(i), "Duplicate of row " + first);
+            else if (first != null)
+                repeats.add(numbers.get(i));
+            else {
+                inserts.add(e.row(i, pending));
+                inserted.put(e.hash(), numbers.get(i));
+            }
+        }
+
+        final List<Database.Statement> statements = Entry.insertStatements(collection, inserts);
+        if (!links.isEmpty())
+            statements.add(Entry.linkStatement(collection, links));
+
+        try {
+            if (!statements.isEmpty()) {
+                final List<JcQueryResult> results = Database.execute(db, statements);
+                for (int i = 0; i < results.size(); i++) {
+                    final int n = results.get(i).resultOf(new JcNumber("id")).size();
+                    if (!links.isEmpty() && i == results.size() - 1)
+                        summary.linked += n;
+                    else
+                        summary.created += n;
+                }
+            }
+            summary.linked += repeats.size();
+        } catch (RequestException e) {
+            for (Map<String, Object> row : inserts)
+                error(numbers.get((Integer) row.get("idx")), e.getMessage());
+            for (Map<String, Object> row : links)
+                error(numbers.get((Integer) row.get("idx")), e.getMessage());
+            for (long row : repeats)
+                error(row, e.getMessage());
+        }
+
+        entries.clear();
+        numbers.clear();
+    }
+
+    /**
+     * Next csv record (RFC 4180), or null at the end of input. Quoted cells
+     * may contain separators, quotes ("") and line breaks.
+     */
+    static List<String> record(Reader in) throws IOException {
+        final List<String> cells = new ArrayList<String>();
+        final StringBuilder cell = new StringBuilder();
+        boolean quoted = false, any = false;
+
+        int c;
+        while ((c = in.read()) != -1) {
+            any = true;
+            if (quoted) {
+                if (c != '"') {
+                    cell.append((char) c);
+                    continue;
+                }
+                in.mark(1);
+                final int next = in.read();
+                if (next == '"') {
+                    cell.append('"');
+                    continue;
+                }
+                quoted = false;
+                if (next == -1)
+                    break;
+                in.reset();
+            } else if (c == '"' && cell.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                cell.append((char) c);
+            }
+        }
+
+        if (!any)
+            return null;
+        if (quoted)
+            throw new IOException("unterminated quoted cell");
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    static boolean isCsv(String format, String contentType) {
+        if (format != null && !format.isEmpty()) {
+            if (!Export.CSV.equals(format) && !Export.NDJSON.equals(format))
+                throw new RequestException("'format' must be ndjson or csv");
+            return Export.CSV.equals(format);
+        }
+        return contentType != null && contentType.toLowerCase().startsWith("text/csv");
+    }
+}
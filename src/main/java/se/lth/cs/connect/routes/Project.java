@@ -2,12 +2,13 @@ package se.lth.cs.connect.routes;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.File;
 
 import iot.jcypher.graph.GrNode;
 import iot.jcypher.query.JcQueryResult;
@@ -18,6 +19,7 @@ import iot.jcypher.query.factories.clause.MATCH;
 import iot.jcypher.query.factories.clause.OPTIONAL_MATCH;
 import iot.jcypher.query.factories.clause.RETURN;
 import iot.jcypher.query.factories.clause.SEPARATE;
+import iot.jcypher.query.factories.clause.WHERE;
 import iot.jcypher.query.result.JcError;
 import iot.jcypher.query.values.JcNode;
 import iot.jcypher.query.values.JcNumber;
@@ -31,7 +33,11 @@ import se.lth.cs.connect.RequestException;
 import se.lth.cs.connect.TrustLevel;
 import se.lth.cs.connect.modules.AccountSystem;
 import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Export;
+import se.lth.cs.connect.modules.FacetIndex;
 import se.lth.cs.connect.modules.TaxonomyDB;
+import se.lth.cs.connect.modules.TaxonomyIndex;
 
 public class Project extends BackendRouter {
 
@@ -145,7 +151,7 @@ public class Project extends BackendRouter {
         GET("/{name}/taxonomy", (rc) -> {
             final String name = rc.getParameter("name").toString();
             try {
-                rc.json().send(TaxonomyDB.read(TaxonomyDB.project(name)));
+                TaxonomyDB.send(TaxonomyDB.project(name), rc);
             } catch (RequestException re) {
                 if (re.getStatus() == 404)
                     throw new RequestException(404, "No such project.");
@@ -154,6 +160,68 @@ public class Project extends BackendRouter {
             }
         });
 
+        // GET /project/xyz/changes?since=120
+        // --> {seq: 135, nodes: [], edges: [], removed: [ids]}
+        GET("/{name}/changes", (rc) -> {
+            final String name = rc.getParameter("name").toString();
+            final long since = rc.getParameter("since").toLong(-1);
+            rc.json().send(ChangeFeed.ofProject(rc.getLocal("db"), name, since));
+        });
+
+        // GET /project/xyz/export?format=csv
+        // --> one line per approved entry, with its classification flattened
+        GET("/{name}/export", (rc) -> {
+            final String name = rc.getParameter("name").toString();
+            final JcNode project = new JcNode("p");
+            final List<GrNode> matches = Database.query(rc.getLocal("db"), new IClause[] {
+                MATCH.node(project).label("project").property("name").value(name),
+                RETURN.value(project)
+            }).resultOf(project);
+            if (matches.isEmpty())
+                throw new RequestException(404, "Project not found.");
+
+            final List<String> facets = new ArrayList<String>(TaxonomyIndex.ofProject(name).facets());
+            Collections.sort(facets);
+
+            Export.send(rc,
+                new Export.Source("(:project {name: {project}})<-[:EXTENDS]-(:collection)" +
+                    "-[:CONTAINS]->(e:entry)", null, false)
+                    .param("project", name),
+                facets, name);
+        });
+
+        // GET /project/xyz/classified?facet=SCOPE
+        // --> [entries classified under SCOPE or any of its descendants]
+        GET("/{name}/classified", (rc) -> {
+            final String name = rc.getParameter("name").toString();
+            if (rc.getParameter("facet").isEmpty())
+                throw new RequestException("Must specify 'facet' parameter.");
+
+            final String facet = rc.getParameter("facet").toString();
+            final Set<String> types = TaxonomyIndex.ofProject(name).subtree(facet);
+            if (types.isEmpty())
+                throw new RequestException(404, "No such facet in taxonomy.");
+
+            final JcNode proj = new JcNode("p");
+            final JcNode entry = new JcNode("e");
+            final JcRelation rel = new JcRelation("r");
+
+            JcQueryResult res = Database.query(rc.getLocal("db"), new IClause[]{
+                MATCH.node(proj).label("project").property("name").value(name)
+                    .relation().type("EXTENDS")
+                    .node().label("collection")
+                    .relation().type("CONTAINS")
+                    .node(entry).label("entry")
+                    .relation(rel).out()
+                    .node().label("facet"),
+                WHERE.valueOf(rel.type()).IN_list(types.toArray())
+                    .AND().NOT().has(entry.property("pending")),
+                RETURN.DISTINCT().value(entry)
+            });
+
+            rc.json().send(Graph.Node.fromList(res.resultOf(entry)));
+        });
+
         // PUT /project/xyz [name=xyz1] [link=serp.xyz]
         PUT("/{id}", (rc) -> {
             authorize(rc, rc.getParameter("id").toString());
@@ -184,15 +252,9 @@ public class Project extends BackendRouter {
                     // Must also update the name of the taxonomy database file
                     if (!rc.getParameter("name").isNull()) {
                         final String name = rc.getParameter("name").toString();
-                        final String oldCtx = TaxonomyDB.project(id);
-                        final String newCtx = TaxonomyDB.project(name);
-
-                        final File dbfile = new File(oldCtx);
-                        if (!dbfile.renameTo(new File(newCtx))) {
-                            String data = TaxonomyDB.read(oldCtx);
-                            TaxonomyDB.write(newCtx, data);
-                            dbfile.delete();
-                        }
+                        TaxonomyDB.rename(TaxonomyDB.project(id), TaxonomyDB.project(name));
+                        ChangeFeed.renameProject(rc.getLocal("db"), id, name);
+                        FacetIndex.forget(id);
                     }
 
                     rc.getResponse().ok();
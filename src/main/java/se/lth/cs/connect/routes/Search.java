@@ -0,0 +1,96 @@
+package se.lth.cs.connect.routes;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.values.JcNumber;
+import ro.pippo.core.PippoSettings;
+import se.lth.cs.connect.Connect;
+import se.lth.cs.connect.Graph;
+import se.lth.cs.connect.RequestException;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Metrics;
+import se.lth.cs.connect.modules.SearchIndex;
+
+/**
+ * Full text search over the accepted entries of a project.
+ */
+public class Search extends BackendRouter {
+    static final int DEFAULT_LIMIT = 20;
+    static final int MAX_LIMIT = 100;
+
+    public static class Result {
+        public int total, offset;
+        public SearchIndex.Hit[] hits;
+        public Graph.Node[] nodes;
+    }
+
+    public Search(Connect app) {
+        super(app);
+    }
+
+    @Override
+    public String getPrefix() { return "/v1/search"; }
+
+    @Override
+    protected void setup(PippoSettings conf) {
+        // GET /?project=serp&q=regression testing&offset=0&limit=20
+        // --> {total: 42, offset: 0, hits: [{id, score}], nodes: [entry]}
+        GET("", (rc) -> {
+            final long start = System.nanoTime();
+            final String project = rc.getParameter("project").toString();
+            final String q = rc.getParameter("q").toString();
+            if (project == null || project.isEmpty())
+                throw new RequestException("Must provide project parameter");
+            if (q == null || q.trim().isEmpty())
+                throw new RequestException("Must provide q parameter");
+
+            final int offset = rc.getParameter("offset").toInt(0);
+            final int limit = rc.getParameter("limit").toInt(DEFAULT_LIMIT);
+            if (offset < 0 || limit < 1 || limit > MAX_LIMIT)
+                throw new RequestException("limit must be 1.." + MAX_LIMIT + " and offset non-negative");
+
+            final IDBAccess db = rc.getLocal("db");
+            final List<Long> collections = collectionsOf(db, project);
+
+            final SearchIndex index = SearchIndex.get();
+            index.refresh(db);
+            final SearchIndex.Hits hits = index.search(q, collections, offset, limit);
+
+            final Result result = new Result();
+            result.total = hits.total;
+            result.offset = offset;
+            result.hits = hits.hits;
+
+            final List<Long> ids = new ArrayList<Long>(hits.hits.length);
+            for (SearchIndex.Hit hit : hits.hits)
+                ids.add(hit.id);
+            result.nodes = Entry.nodes(db, ids);
+
+            Metrics.timer("search").since(start);
+            rc.json().send(result);
+        });
+    }
+
+    private static List<Long> collectionsOf(IDBAccess db, String project) {
+        final List<BigDecimal> found = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (p:project {name: {name}}) " +
+                "OPTIONAL MATCH (p)<-[:EXTENDS]-(c:collection) " +
+                "RETURN id(c) AS id")
+                .param("name", project))).get(0).resultOf(new JcNumber("id"));
+
+        if (found.isEmpty())
+            throw new RequestException(404, "No such project.");
+
+        final List<Long> ids = new ArrayList<Long>();
+        for (BigDecimal id : found) {
+            if (id != null)
+                ids.add(id.longValue());
+        }
+        return ids;
+    }
+}
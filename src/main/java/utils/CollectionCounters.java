@@ -0,0 +1,120 @@
+package utils;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcNumber;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Metrics;
+
+/**
+ * Repair the denormalized c.members and c.entries counters that
+ * GET /v1/collection/{id}/stats reads.
+ *
+ * Writes that add or remove members or entries update the counters in the
+ * same statement (a counter that is missing stays missing, and stats counts
+ * instead). This job recounts every collection and fixes those that
+ * drifted, or that have not been counted yet.
+ *
+ * Collections are recounted in id order, a batch per transaction. Each
+ * collection in the batch is write locked before it is counted, so the
+ * count waits for writers that hold its lock and writers that come later
+ * see the repaired value. Only one batch of collections is locked at a
+ * time.
+ */
+public class CollectionCounters {
+
+    public static class Run {
+        public long checked, repaired;
+    }
+
+    private final ScheduledExecutorService scheduler =
+       Executors.newScheduledThreadPool(1);
+
+    public void everyTwelveHours() {
+        final Runnable reconciler = new Runnable() {
+            @Override
+            public void run() {
+                IDBAccess db = Database.access();
+                try {
+                    Run run = reconcile(db);
+                    if (run.repaired > 0)
+                        System.out.println("CollectionCounters: repaired " + run.repaired +
+                            " of " + run.checked + " collections");
+                } catch (Exception e) {
+                    System.err.println("CollectionCounters: " + e.getMessage());
+                } finally {
+                    db.close();
+                }
+            }
+        };
+        // Soon after startup, so that new databases get their counters
+        scheduler.scheduleAtFixedRate(reconciler, 1, 12 * 60, MINUTES);
+    }
+
+    /* Collections recounted per transaction */
+    static final int BATCH = 500;
+
+    /**
+     * Recount all collections, a batch at a time, and bump the version of
+     * those that were repaired.
+     */
+    public static synchronized Run reconcile(IDBAccess db) {
+        final long start = System.nanoTime();
+        final Run run = new Run();
+
+        long after = -1;
+        while (true) {
+            final JcQueryResult window = Database.execute(db, Collections.singletonList(
+                new Database.Statement(
+                    "MATCH (c:collection) WHERE id(c) > {after} " +
+                    "WITH c ORDER BY id(c) LIMIT {batch} " +
+                    "RETURN count(c) AS checked, max(id(c)) AS last")
+                    .param("after", after)
+                    .param("batch", BATCH))).get(0);
+
+            final long checked = window.resultOf(new JcNumber("checked")).get(0).longValue();
+            if (checked == 0)
+                break;
+            final long last = window.resultOf(new JcNumber("last")).get(0).longValue();
+
+            // Setting and removing a property takes the write lock and leaves
+            // nothing behind
+            final List<BigDecimal> ids = Database.execute(db, Collections.singletonList(
+                new Database.Statement(
+                    "MATCH (c:collection) WHERE id(c) > {after} AND id(c) <= {last} " +
+                    "SET c._lock = true REMOVE c._lock " +
+                    "WITH c, size((c)<-[:MEMBER_OF]-(:user)) AS members, " +
+                        "size((c)-[:CONTAINS]->(:entry)) AS entries " +
+                    "WHERE NOT has(c.members) OR NOT has(c.entries) " +
+                        "OR c.members <> members OR c.entries <> entries " +
+                    "SET c.members = members, c.entries = entries " +
+                    "RETURN id(c) AS id")
+                    .param("after", after)
+                    .param("last", last))).get(0).resultOf(new JcNumber("id"));
+
+            final List<Long> repaired = new ArrayList<Long>();
+            for (BigDecimal id : ids)
+                repaired.add(id.longValue());
+
+            // Cached stats of repaired collections are stale
+            if (!repaired.isEmpty())
+                Database.execute(db, Collections.singletonList(ChangeFeed.bump(repaired)));
+
+            run.checked += checked;
+            run.repaired += repaired.size();
+            after = last;
+        }
+
+        Metrics.timer("collections.reconcile").since(start);
+        return run;
+    }
+}
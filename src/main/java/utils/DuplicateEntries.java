@@ -0,0 +1,178 @@
+package utils;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcCollection;
+import iot.jcypher.query.values.JcNumber;
+import iot.jcypher.query.values.JcString;
+import se.lth.cs.connect.events.DeleteEntryEvent;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Database;
+
+/**
+ * Find accepted entries of a project that share a hash, i.e. the same paper
+ * or challenge that was submitted more than once.
+ *
+ * Copies (entries with e.copyOf, made by addEntry, fork and merge) are
+ * never duplicates: they were made on purpose so that collections can
+ * classify them on their own.
+ *
+ * Duplicates are only merged when an admin asks for it, and only when they
+ * are classified identically, since otherwise the merged entry would have
+ * to pick one classification. The scheduled job only reports.
+ */
+public class DuplicateEntries {
+
+    public static class Group {
+        public String project, hash;
+        public long[] entries;
+        public boolean identical;
+    }
+
+    public static class Report {
+        public List<Group> groups = new ArrayList<Group>();
+        public int merged;
+    }
+
+    private final ScheduledExecutorService scheduler =
+       Executors.newScheduledThreadPool(1);
+
+    public void everyTwelveHours() {
+        final Runnable reporter = new Runnable() {
+            @Override
+            public void run() {
+                IDBAccess db = Database.access();
+                try {
+                    Report report = report(db);
+                    if (!report.groups.isEmpty())
+                        System.out.println("DuplicateEntries: " + report.groups.size() +
+                            " groups of duplicates, see /v1/admin/duplicates");
+                } catch (Exception e) {
+                    System.err.println("DuplicateEntries: " + e.getMessage());
+                } finally {
+                    db.close();
+                }
+            }
+        };
+        scheduler.scheduleAtFixedRate(reporter, 1, 12, HOURS);
+    }
+
+    /**
+     * All groups of accepted entries in a project that share a hash, lowest
+     * id first. Copies are left out.
+     */
+    public static Report report(IDBAccess db) {
+        final JcString project = new JcString("project");
+        final JcString hash = new JcString("hash");
+        final JcCollection ids = new JcCollection("ids");
+
+        JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (p:project)<-[:EXTENDS]-(:collection)-[:CONTAINS]->(e:entry) " +
+                "WHERE has(e.hash) AND NOT has(e.pending) AND NOT has(e.copyOf) " +
+                "WITH DISTINCT p, e ORDER BY id(e) " +
+                "WITH p.name AS project, e.hash AS hash, collect(id(e)) AS ids " +
+                "WHERE size(ids) > 1 " +
+                "RETURN project, hash, ids"))).get(0);
+
+        final List<String> projects = res.resultOf(project);
+        final List<String> hashes = res.resultOf(hash);
+        final List<List<?>> groups = res.resultOf(ids);
+
+        Report report = new Report();
+        for (int i = 0; i < hashes.size(); i++) {
+            Group group = new Group();
+            group.project = projects.get(i);
+            group.hash = hashes.get(i);
+            group.entries = new long[groups.get(i).size()];
+            for (int j = 0; j < group.entries.length; j++)
+                group.entries[j] = ((Number)groups.get(i).get(j)).longValue();
+            group.identical = identical(db, group.entries);
+            report.groups.add(group);
+        }
+        return report;
+    }
+
+    /**
+     * Merge every group of identically classified duplicates into a single
+     * entry, the lowest id, which is added to all collections that contained
+     * any of them.
+     */
+    public static Report merge(IDBAccess db) {
+        Report report = report(db);
+        for (Group group : report.groups) {
+            if (!group.identical)
+                continue;
+
+            mergeInto(db, group.entries[0], group.entries);
+            report.merged += group.entries.length - 1;
+        }
+        return report;
+    }
+
+    /* Entries have the same set of (relation type, facet) pairs */
+    private static boolean identical(IDBAccess db, long[] entries) {
+        final JcNumber id = new JcNumber("id");
+        final JcString sample = new JcString("sample");
+
+        JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (e:entry) WHERE id(e) IN {ids} " +
+                "OPTIONAL MATCH (e)-[r]->(f:facet) " +
+                "RETURN id(e) AS id, type(r) + '/' + f.hash AS sample")
+                .param("ids", toList(entries)))).get(0);
+
+        final List<BigDecimal> ids = res.resultOf(id);
+        final List<String> samples = res.resultOf(sample);
+
+        Map<Long,Set<String>> classification = new HashMap<Long,Set<String>>();
+        for (int i = 0; i < ids.size(); i++) {
+            final long entry = ids.get(i).longValue();
+            if (!classification.containsKey(entry))
+                classification.put(entry, new HashSet<String>());
+            if (samples.get(i) != null)
+                classification.get(entry).add(samples.get(i));
+        }
+
+        return classification.size() == entries.length &&
+            new HashSet<Set<String>>(classification.values()).size() == 1;
+    }
+
+    private static void mergeInto(IDBAccess db, long keep, long[] entries) {
+        final List<Long> others = new ArrayList<Long>();
+        for (long entry : entries) {
+            if (entry != keep)
+                others.add(entry);
+        }
+
+        List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        statements.add(ChangeFeed.touch(Collections.singletonList(keep)));
+        statements.add(new Database.Statement(
+            "MATCH (keep:entry) WHERE id(keep) = {keep} " +
+            "MATCH (c:collection)-[:CONTAINS]->(dup:entry) WHERE id(dup) IN {others} " +
+            "MERGE (c)-[:CONTAINS]->(keep) ON CREATE SET c.entries = c.entries + 1")
+            .param("keep", keep)
+            .param("others", others));
+        statements.addAll(DeleteEntryEvent.statements(others));
+        Database.execute(db, statements);
+    }
+
+    private static List<Long> toList(long[] values) {
+        List<Long> list = new ArrayList<Long>(values.length);
+        for (long v : values)
+            list.add(v);
+        return list;
+    }
+}
@@ -0,0 +1,170 @@
+package utils;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcNumber;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Metrics;
+
+/**
+ * Delete facets that no entry is classified with anymore, e.g. after an
+ * entry was edited. Deleting entries already removes their own orphans
+ * (see DeleteEntryEvent), so this is only a sweep for leftovers.
+ *
+ * Facets are visited in id order, a batch per transaction with a pause in
+ * between, so the sweep never holds many locks or hogs the database.
+ *
+ * The scheduled sweep also prunes change feed tombstones older than the
+ * retention window, in the same batches, see ChangeFeed.prune.
+ */
+public class OrphanFacets {
+
+    public static class Progress {
+        public boolean running;
+        public long scanned, deleted, batches;
+        public long started, finished;
+    }
+
+    private static final Progress progress = new Progress();
+
+    private final ScheduledExecutorService scheduler =
+       Executors.newScheduledThreadPool(1);
+
+    private final int batch;
+    private final long pause;
+    private final long retention;
+
+    public OrphanFacets(int batch, long pauseMillis, int retentionDays) {
+        this.batch = batch;
+        this.pause = pauseMillis;
+        this.retention = DAYS.toMillis(retentionDays);
+    }
+
+    public void everyTwelveHours() {
+        final Runnable sweeper = new Runnable() {
+            @Override
+            public void run() {
+                IDBAccess db = Database.access();
+                try {
+                    Progress done = sweep(db, batch, pause);
+                    System.out.println("OrphanFacets: scanned " + done.scanned +
+                        " facets, deleted " + done.deleted);
+                    long pruned = pruneTombstones(db, System.currentTimeMillis() - retention,
+                        batch, pause);
+                    if (pruned > 0)
+                        System.out.println("OrphanFacets: pruned " + pruned + " tombstones");
+                } catch (Exception e) {
+                    System.err.println("OrphanFacets: " + e.getMessage());
+                } finally {
+                    db.close();
+                }
+            }
+        };
+        scheduler.scheduleAtFixedRate(sweeper, 2, 12, HOURS);
+    }
+
+    /**
+     * Delete tombstones created before some time, a batch per transaction.
+     */
+    public static long pruneTombstones(IDBAccess db, long before, int batch, long pauseMillis)
+            throws InterruptedException {
+        final long start = System.nanoTime();
+        long total = 0, deleted;
+        do {
+            deleted = ChangeFeed.prune(db, before, batch);
+            total += deleted;
+            if (deleted > 0 && pauseMillis > 0)
+                Thread.sleep(pauseMillis);
+        } while (deleted == batch);
+        Metrics.timer("changes.prune").since(start);
+        return total;
+    }
+
+    /**
+     * Progress of the running sweep, or totals of the last one.
+     */
+    public static Progress progress() {
+        synchronized (progress) {
+            final Progress copy = new Progress();
+            copy.running = progress.running;
+            copy.scanned = progress.scanned;
+            copy.deleted = progress.deleted;
+            copy.batches = progress.batches;
+            copy.started = progress.started;
+            copy.finished = progress.finished;
+            return copy;
+        }
+    }
+
+    /**
+     * Sweep all facets. Only one sweep runs at a time; concurrent calls
+     * return the progress of the running one.
+     */
+    public static Progress sweep(IDBAccess db, int batch, long pauseMillis) {
+        synchronized (progress) {
+            if (progress.running)
+                return progress();
+            progress.running = true;
+            progress.scanned = progress.deleted = progress.batches = 0;
+            progress.started = System.currentTimeMillis();
+            progress.finished = 0;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            long after = -1;
+            while (true) {
+                final JcQueryResult window = Database.execute(db, Collections.singletonList(
+                    new Database.Statement(
+                        "MATCH (f:facet) WHERE id(f) > {after} " +
+                        "WITH f ORDER BY id(f) LIMIT {batch} " +
+                        "RETURN count(f) AS scanned, max(id(f)) AS last")
+                        .param("after", after)
+                        .param("batch", batch))).get(0);
+
+                final long scanned = window.resultOf(new JcNumber("scanned")).get(0).longValue();
+                if (scanned == 0)
+                    break;
+                final long last = window.resultOf(new JcNumber("last")).get(0).longValue();
+
+                // Checked again when deleting, in case a facet got used meanwhile
+                final List<BigDecimal> deleted = Database.execute(db, Collections.singletonList(
+                    new Database.Statement(
+                        "MATCH (f:facet) WHERE id(f) > {after} AND id(f) <= {last} " +
+                        "AND NOT (f)--(:entry) " +
+                        "DETACH DELETE f " +
+                        "RETURN count(*) AS deleted")
+                        .param("after", after)
+                        .param("last", last))).get(0).resultOf(new JcNumber("deleted"));
+
+                synchronized (progress) {
+                    progress.scanned += scanned;
+                    progress.deleted += deleted.isEmpty() ? 0 : deleted.get(0).longValue();
+                    progress.batches++;
+                }
+                after = last;
+
+                if (pauseMillis > 0)
+                    Thread.sleep(pauseMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (progress) {
+                progress.running = false;
+                progress.finished = System.currentTimeMillis();
+            }
+            Metrics.timer("facets.sweep").since(start);
+        }
+        return progress();
+    }
+}
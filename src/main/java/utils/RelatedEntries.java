@@ -0,0 +1,425 @@
+package utils;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.JcQueryResult;
+import iot.jcypher.query.values.JcNumber;
+import iot.jcypher.query.values.JcString;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Metrics;
+
+/**
+ * Precompute related entries: the top K accepted entries of the same
+ * project that share the most (relation type, facet) pairs with an entry,
+ * by weighted Jaccard similarity. Pairs are weighted by inverse document
+ * frequency within the project, so sharing a rare classification counts
+ * for more than sharing a common one.
+ *
+ * Features are (project, relation type, facet), so entries of different
+ * projects never share one and are never related, even when they point to
+ * the same facet node. An entry in several projects is compared within
+ * each of them.
+ *
+ * Results are stored on the entry as e.related (ids) and e.relatedScores.
+ *
+ * The first run after startup reads the classification of every entry and
+ * computes every entry. The features are kept in memory, and later runs
+ * only read the entries stamped in the change feed since the previous run,
+ * then rebuild the postings from memory. They only recompute those
+ * entries, entries that share a pair with them and entries whose list
+ * contained them. The weights of the other entries drift slightly until
+ * the next full run, which is good enough for recommendations.
+ */
+public class RelatedEntries {
+
+    public static class Neighbour {
+        public long id;
+        public double score;
+    }
+
+    public static class Run {
+        public boolean full;
+        public int entries, computed, written;
+    }
+
+    public static final int K = 10;
+
+    /* Tasks smaller than this are not split further */
+    private static final int LEAF = 64;
+
+    /* Rows written per statement */
+    private static final int BATCH = 500;
+
+    /* State of the previous run, guarded by the class lock */
+    private static long seq = -1;
+    private static Map<Long, long[]> previous = new HashMap<Long, long[]>();
+
+    /* Entry --> features as "project\0type:facet", guarded by the class lock */
+    private static Map<Long, Set<String>> features = new HashMap<Long, Set<String>>();
+
+    private final ScheduledExecutorService scheduler =
+       Executors.newScheduledThreadPool(1);
+
+    public void every(long minutes) {
+        final Runnable updater = new Runnable() {
+            @Override
+            public void run() {
+                IDBAccess db = Database.access();
+                try {
+                    Run run = update(db);
+                    if (run.written > 0)
+                        System.out.println("RelatedEntries: computed " + run.computed +
+                            " of " + run.entries + " entries, wrote " + run.written);
+                } catch (Exception e) {
+                    System.err.println("RelatedEntries: " + e.getMessage());
+                } finally {
+                    db.close();
+                }
+            }
+        };
+        scheduler.scheduleWithFixedDelay(updater, 1, minutes, MINUTES);
+    }
+
+    /**
+     * Entries and their features, with entries and features numbered by
+     * ordinal so that everything below works on primitive arrays.
+     */
+    private static class Model {
+        long[] ids;
+        Map<Long, Integer> ordinal = new HashMap<Long, Integer>();
+        int[][] features;  // entry --> sorted feature ordinals
+        int[][] postings;  // feature --> entries
+        double[] weight;   // feature --> idf
+        double[] norm;     // entry --> sum of feature weights
+    }
+
+    /**
+     * Read the features of some accepted entries, or of all of them if ids
+     * is null, replacing what was read before.
+     */
+    private static void load(IDBAccess db, Set<Long> ids) {
+        if (ids == null) {
+            features.clear();
+            read(db, null);
+            return;
+        }
+
+        features.keySet().removeAll(ids);
+        final List<Long> list = new ArrayList<Long>(ids);
+        for (int i = 0; i < list.size(); i += BATCH)
+            read(db, list.subList(i, Math.min(list.size(), i + BATCH)));
+    }
+
+    private static void read(IDBAccess db, List<Long> ids) {
+        final Database.Statement statement = new Database.Statement(ids == null ?
+            "MATCH (p:project)<-[:EXTENDS]-(:collection)-[:CONTAINS]->(e:entry)-[r]->(f:facet) " +
+            "WHERE NOT has(e.pending) " +
+            "RETURN DISTINCT p.name AS p, id(e) AS e, type(r) AS t, id(f) AS f" :
+            "MATCH (e:entry) WHERE id(e) IN {ids} AND NOT has(e.pending) " +
+            "MATCH (p:project)<-[:EXTENDS]-(:collection)-[:CONTAINS]->(e)-[r]->(f:facet) " +
+            "RETURN DISTINCT p.name AS p, id(e) AS e, type(r) AS t, id(f) AS f");
+        if (ids != null)
+            statement.param("ids", ids);
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(statement)).get(0);
+
+        final List<String> projects = res.resultOf(new JcString("p"));
+        final List<BigDecimal> entries = res.resultOf(new JcNumber("e"));
+        final List<String> types = res.resultOf(new JcString("t"));
+        final List<BigDecimal> facets = res.resultOf(new JcNumber("f"));
+        for (int i = 0; i < entries.size(); i++) {
+            features.computeIfAbsent(entries.get(i).longValue(), (k) -> new HashSet<String>())
+                .add(projects.get(i) + "\u0000" + types.get(i) + ":" + facets.get(i).longValue());
+        }
+    }
+
+    /* Number everything that was read, see Model */
+    private static Model model() {
+        final Model m = new Model();
+        final Map<String, Integer> featureOf = new HashMap<String, Integer>();
+        final List<String> projectOf = new ArrayList<String>();  // feature --> project
+        final Map<String, Set<Long>> members = new HashMap<String, Set<Long>>();
+        final List<Set<Integer>> sets = new ArrayList<Set<Integer>>();
+        final List<Long> ids = new ArrayList<Long>();
+        for (Map.Entry<Long, Set<String>> entry : features.entrySet()) {
+            final long id = entry.getKey();
+            m.ordinal.put(id, ids.size());
+            ids.add(id);
+            final Set<Integer> set = new HashSet<Integer>();
+            sets.add(set);
+
+            for (String key : entry.getValue()) {
+                final String project = key.substring(0, key.indexOf('\u0000'));
+                Integer f = featureOf.get(key);
+                if (f == null) {
+                    f = featureOf.size();
+                    featureOf.put(key, f);
+                    projectOf.add(project);
+                }
+                set.add(f);
+                members.computeIfAbsent(project, (k) -> new HashSet<Long>()).add(id);
+            }
+        }
+
+        final int n = ids.size();
+        m.ids = new long[n];
+        m.features = new int[n][];
+        final int[] df = new int[featureOf.size()];
+        for (int e = 0; e < n; e++) {
+            m.ids[e] = ids.get(e);
+            final int[] fs = new int[sets.get(e).size()];
+            int j = 0;
+            for (int f : sets.get(e))
+                fs[j++] = f;
+            Arrays.sort(fs);
+            m.features[e] = fs;
+            for (int f : fs)
+                df[f]++;
+        }
+
+        m.weight = new double[df.length];
+        m.postings = new int[df.length][];
+        for (int f = 0; f < df.length; f++) {
+            final int size = members.get(projectOf.get(f)).size();
+            m.weight[f] = Math.log(1.0 + (double)size / df[f]);
+            m.postings[f] = new int[df[f]];
+        }
+        final int[] fill = new int[df.length];
+        m.norm = new double[n];
+        for (int e = 0; e < n; e++) {
+            for (int f : m.features[e]) {
+                m.postings[f][fill[f]++] = e;
+                m.norm[e] += m.weight[f];
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Top K neighbours for a range of target entries. Every leaf has its
+     * own accumulator, indexed by entry ordinal.
+     */
+    private static class TopK extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Model m;
+        private final int[] targets;
+        private final int lo, hi;
+        private final long[][] ids;
+        private final double[][] scores;
+
+        TopK(Model m, int[] targets, int lo, int hi, long[][] ids, double[][] scores) {
+            this.m = m;
+            this.targets = targets;
+            this.lo = lo;
+            this.hi = hi;
+            this.ids = ids;
+            this.scores = scores;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > LEAF) {
+                final int mid = (lo + hi) >>> 1;
+                invokeAll(new TopK(m, targets, lo, mid, ids, scores),
+                          new TopK(m, targets, mid, hi, ids, scores));
+                return;
+            }
+
+            final double[] shared = new double[m.ids.length];
+            final int[] touched = new int[m.ids.length];
+            for (int t = lo; t < hi; t++) {
+                final int a = targets[t];
+                int count = 0;
+                for (int f : m.features[a]) {
+                    for (int b : m.postings[f]) {
+                        if (b == a)
+                            continue;
+                        if (shared[b] == 0)
+                            touched[count++] = b;
+                        shared[b] += m.weight[f];
+                    }
+                }
+
+                // Insertion into a sorted array of at most K neighbours
+                final int[] best = new int[K];
+                final double[] bestScore = new double[K];
+                int size = 0;
+                for (int i = 0; i < count; i++) {
+                    final int b = touched[i];
+                    final double inter = shared[b];
+                    final double score = inter / (m.norm[a] + m.norm[b] - inter);
+                    shared[b] = 0;
+
+                    if (size == K && score <= bestScore[K - 1])
+                        continue;
+                    int j = size < K ? size++ : K - 1;
+                    while (j > 0 && bestScore[j - 1] < score) {
+                        best[j] = best[j - 1];
+                        bestScore[j] = bestScore[j - 1];
+                        j--;
+                    }
+                    best[j] = b;
+                    bestScore[j] = score;
+                }
+
+                ids[t] = new long[size];
+                scores[t] = new double[size];
+                for (int i = 0; i < size; i++) {
+                    ids[t][i] = m.ids[best[i]];
+                    scores[t][i] = Math.round(bestScore[i] * 10000) / 10000.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Recompute what changed since the previous run, or everything on the
+     * first run, and store lists that differ from the stored ones.
+     */
+    public static synchronized Run update(IDBAccess db) {
+        final long start = System.nanoTime();
+        final long next = ChangeFeed.current(db);
+        final Run run = new Run();
+        run.full = seq < 0 || seq < ChangeFeed.pruned(db);
+        if (!run.full && next == seq)
+            return run;
+
+        final Set<Long> dirty = new HashSet<Long>();
+        if (!run.full) {
+            final List<BigDecimal> found = Database.execute(db, Collections.singletonList(
+                new Database.Statement(
+                    "MATCH (e:entry) WHERE e.seq > {since} RETURN id(e) AS id " +
+                    "UNION MATCH (t:tombstone) WHERE t.seq > {since} RETURN t.entry AS id")
+                    .param("since", seq))).get(0).resultOf(new JcNumber("id"));
+            for (BigDecimal id : found)
+                dirty.add(id.longValue());
+        }
+
+        load(db, run.full ? null : dirty);
+        final Model m = model();
+        final int n = m.ids.length;
+        run.entries = n;
+
+        final boolean[] affected = new boolean[n];
+        if (run.full) {
+            Arrays.fill(affected, true);
+        } else {
+            for (long id : dirty) {
+                final Integer e = m.ordinal.get(id);
+                if (e == null)
+                    continue;
+                affected[e] = true;
+                for (int f : m.features[e]) {
+                    for (int b : m.postings[f])
+                        affected[b] = true;
+                }
+            }
+            for (Map.Entry<Long, long[]> p : previous.entrySet()) {
+                final Integer e = m.ordinal.get(p.getKey());
+                if (e == null || affected[e])
+                    continue;
+                for (long id : p.getValue()) {
+                    if (dirty.contains(id)) {
+                        affected[e] = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        int count = 0;
+        final int[] targets = new int[n];
+        for (int e = 0; e < n; e++) {
+            if (affected[e])
+                targets[count++] = e;
+        }
+        run.computed = count;
+
+        final long[][] ids = new long[count][];
+        final double[][] scores = new double[count][];
+        ForkJoinPool.commonPool().invoke(new TopK(m, targets, 0, count, ids, scores));
+
+        final List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        for (int t = 0; t < count; t++) {
+            final long id = m.ids[targets[t]];
+            if (Arrays.equals(previous.get(id), ids[t]))
+                continue;
+            rows.add(row(id, ids[t], scores[t]));
+            previous.put(id, ids[t]);
+        }
+
+        // Entries that lost all of their classification, or were removed
+        for (long id : dirty) {
+            if (!m.ordinal.containsKey(id) && previous.remove(id) != null)
+                rows.add(row(id, new long[0], new double[0]));
+        }
+
+        final List<Database.Statement> statements = new ArrayList<Database.Statement>();
+        for (int i = 0; i < rows.size(); i += BATCH) {
+            statements.add(new Database.Statement(
+                "UNWIND {rows} AS row " +
+                "MATCH (e:entry) WHERE id(e) = row.id " +
+                "SET e.related = row.related, e.relatedScores = row.scores")
+                .param("rows", rows.subList(i, Math.min(rows.size(), i + BATCH))));
+        }
+        if (run.full) {
+            statements.add(new Database.Statement(
+                "MATCH (e:entry) WHERE has(e.related) AND NOT id(e) IN {ids} " +
+                "REMOVE e.related, e.relatedScores")
+                .param("ids", m.ordinal.keySet()));
+        }
+        Database.execute(db, statements);
+        run.written = rows.size();
+
+        seq = next;
+        Metrics.timer("related.update").since(start);
+        return run;
+    }
+
+    private static Map<String, Object> row(long id, long[] related, double[] scores) {
+        final Map<String, Object> row = new HashMap<String, Object>();
+        row.put("id", id);
+        row.put("related", related);
+        row.put("scores", scores);
+        return row;
+    }
+
+    /**
+     * Stored neighbours of an entry, best first. Empty if the entry has not
+     * been computed (yet) or does not exist.
+     */
+    public static List<Neighbour> of(IDBAccess db, long id) {
+        final JcQueryResult res = Database.execute(db, Collections.singletonList(
+            new Database.Statement(
+                "MATCH (e:entry) WHERE id(e) = {id} " +
+                "UNWIND range(0, size(coalesce(e.related, [])) - 1) AS i " +
+                "RETURN e.related[i] AS id, e.relatedScores[i] AS score")
+                .param("id", id))).get(0);
+
+        final List<BigDecimal> ids = res.resultOf(new JcNumber("id"));
+        final List<BigDecimal> scores = res.resultOf(new JcNumber("score"));
+        final List<Neighbour> found = new ArrayList<Neighbour>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            final Neighbour n = new Neighbour();
+            n.id = ids.get(i).longValue();
+            n.score = scores.get(i).doubleValue();
+            found.add(n);
+        }
+        return found;
+    }
+}
@@ -25,6 +25,7 @@ import ro.pippo.test.PippoTest;
 import se.lth.cs.connect.modules.Database;
 import se.lth.cs.connect.modules.AccountSystem;
 import se.lth.cs.connect.modules.MailClient;
+import se.lth.cs.connect.modules.TaxonomyDB;
 import utils.URLParser;
 
 public class APITest extends PippoTest {
@@ -145,7 +146,7 @@ public class APITest extends PippoTest {
         return Long.parseLong(id);
     }
 
-    public void setupProject(String email, String passw, String name, String link) {
+    public SessionFilter login(String email, String passw) {
         SessionFilter auth = new SessionFilter();
         given().
             filter(auth).
@@ -155,7 +156,43 @@ public class APITest extends PippoTest {
             statusCode(200).
         when().
             post("/v1/account/login");
+        return auth;
+    }
+
+    // Entries by users below Verified are pending
+    public void verify(String email) {
+        given().
+            filter(login(adminEmail, adminPassw)).
+            param("email", email).
+            param("trust", "Verified").
+        expect().
+            statusCode(200).
+        when().
+            put("/v1/admin/set-trust");
+    }
 
+    // PUT a taxonomy of {id, parent} facets as the next version of the one at path
+    public void putTaxonomy(String path, SessionFilter session, String[][] facets) {
+        TaxonomyDB.Taxonomy taxonomy = new TaxonomyDB.Taxonomy();
+        taxonomy.version = get(path).andReturn().jsonPath().getInt("version") + 1;
+        for (String[] f : facets) {
+            TaxonomyDB.Facet facet = new TaxonomyDB.Facet();
+            facet.id = facet.name = f[0];
+            facet.parent = f[1];
+            taxonomy.taxonomy.add(facet);
+        }
+        given().
+            filter(session).
+            contentType("application/json").
+            body(taxonomy).
+        expect().
+            statusCode(200).
+        when().
+            put(path);
+    }
+
+    public void setupProject(String email, String passw, String name, String link) {
+        SessionFilter auth = login(email, passw);
         given().
             filter(auth).
             param("name", name).
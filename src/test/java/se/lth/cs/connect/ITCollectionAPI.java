@@ -6,12 +6,24 @@ import java.util.List;
 
 
 import org.junit.Before;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.jayway.restassured.filter.session.SessionFilter;
 import com.jayway.restassured.RestAssured;
+import com.jayway.restassured.path.json.JsonPath;
 
+import iot.jcypher.database.IDBAccess;
+import se.lth.cs.connect.modules.AccountSystem;
+import se.lth.cs.connect.modules.ChangeFeed;
+import se.lth.cs.connect.modules.Database;
 import utils.URLParser;
 
 
@@ -155,4 +167,545 @@ public class ITCollectionAPI extends APITest {
 			post("v1/entry/new");
 	}
 
+	/**
+	 * Valid items in a bulk submission are created, invalid ones are reported
+	 * without failing the whole request.
+	 */
+	@Test
+	public void testBulkSubmit() {
+		String ndjson =
+			"{ \"entryType\": \"challenge\", \"description\": \"bulk\", " +
+				"\"serpClassification\": { \"improving\": [\"" + getRandomString() + "\"] } }\n" +
+			"{ \"entryType\": \"research\" }\n" +
+			"{ \"entryType\": \"challenge\", \"description\": \"no facets\" }\n";
+
+		List<Object> results = given().
+			contentType("application/x-ndjson").
+			filter(userSession).
+			queryParam("collection", collectionId).
+			body(ndjson).
+		expect().
+			statusCode(200).
+		when().
+			post("v1/entry/bulk").
+		andReturn().jsonPath().getList("");
+
+		assertTrue(results.size() == 3);
+		expect().statusCode(200).when().get("v1/entry/" + from(results, 0));
+		expect().statusCode(200).when().get("v1/entry/" + from(results, 2));
+
+		given().
+			contentType("application/json").
+			queryParam("collection", collectionId).
+			body("[]").
+		expect().
+			statusCode(400).
+		when().
+			post("v1/entry/bulk");
+	}
+
+	@Test
+	public void testDuplicateSubmit() {
+		String json = "{ \"entryType\": \"challenge\", " +
+			"\"description\": \"" + getRandomString() + "\", " +
+			"\"serpClassification\": {}, " +
+			"\"collection\": " + collectionId + ", " +
+			"\"onDuplicate\": \"%s\" }";
+
+		// Only accepted entries are duplicates
+		verify(email);
+		long id = submitEntry(userSession, collectionId, String.format(json, "reject"));
+
+		given().
+			contentType("application/json").
+			filter(userSession).
+			body(String.format(json, "reject")).
+		expect().
+			statusCode(409).
+		when().
+			post("v1/entry/new");
+
+		long linked = submitEntry(userSession, collectionId, String.format(json, "link"));
+		assertTrue(linked == id);
+
+		long created = submitEntry(userSession, collectionId, String.format(json, "create"));
+		assertTrue(created != id);
+	}
+
+	@Test
+	public void testChanges() {
+		final String url = basePath + "/changes";
+
+		long first = submitEntry(userSession, collectionId);
+		long seq = get(url).andReturn().jsonPath().getLong("seq");
+		final long beforeRemoval = seq;
+
+		long second = submitEntry(userSession, collectionId);
+		given().
+			filter(userSession).
+			param("entryId", first).
+		expect().statusCode(200).when().post(basePath + "/removeEntry");
+
+		given().
+			param("since", seq).
+		expect().
+			statusCode(200).
+			body("nodes.id", contains((int)second)).
+			body("removed", contains((int)first)).
+		when().get(url);
+
+		// Reclassified entries are changed, not the facets they point to
+		seq = get(url).andReturn().jsonPath().getLong("seq");
+		List<Integer> facets = given().filter(userSession).
+			get(basePath + "/entities").andReturn().jsonPath().getList("id");
+		given().
+			contentType("application/json").
+			filter(userSession).
+			body("{\"oldFacetId\": \"IMPROVING\", \"newFacetId\": \"SCOPE\", " +
+				"\"entities\": " + facets + "}").
+		expect().statusCode(200).when().post(basePath + "/reclassify");
+
+		given().
+			param("since", seq).
+		expect().
+			statusCode(200).
+			body("nodes.id", contains((int)second)).
+			body("edges.type", contains("SCOPE")).
+		when().get(url);
+
+		// Once the removal is pruned, polling from before it must resync
+		IDBAccess db = Database.access();
+		try {
+			assertTrue(ChangeFeed.prune(db, System.currentTimeMillis() + 1, 500) > 0);
+		} finally {
+			db.close();
+		}
+		given().param("since", beforeRemoval).expect().statusCode(410).when().get(url);
+		given().param("since", -1).
+		expect().
+			statusCode(200).
+			body("nodes.id", contains((int)second)).
+		when().get(url);
+	}
+
+	@Test
+	public void testEditEntry() {
+		String json = "{ \"entryType\": \"challenge\", " +
+			"\"description\": \"%s\", " +
+			"\"serpClassification\": { \"improving\": [%s] }, " +
+			"\"collection\": " + collectionId + " }";
+
+		long id = submitEntry(userSession, collectionId,
+			String.format(json, getRandomString(), "\"kept\", \"dropped\""));
+
+		given().
+			contentType("application/json").
+			filter(userSession).
+			body(String.format(json, "edited", "\"kept\", \"added\", \"added\"")).
+		expect().
+			statusCode(200).
+		when().
+			put("v1/entry/" + id);
+
+		given().
+		expect().
+			statusCode(200).
+			body("IMPROVING", containsInAnyOrder("kept", "added")).
+		when().
+			get("v1/entry/" + id + "/taxonomy");
+
+		given().
+		expect().
+			statusCode(200).
+			body("description", equalTo("edited")).
+		when().
+			get("v1/entry/" + id);
+	}
+
+	@Test
+	public void testFetchEntries() {
+		long first = submitEntry(userSession, collectionId);
+		long second = submitEntry(userSession, collectionId);
+
+		given().
+			param("ids", first + "," + second + ",-1").
+			param("include", "taxonomy,collections").
+		expect().
+			statusCode(200).
+			body("size()", equalTo(2)).
+			body(first + ".entry.id", equalTo((int)first)).
+			body(first + ".taxonomy.IMPROVING.size()", equalTo(1)).
+			body(second + ".collections", contains((int)collectionId)).
+		when().
+			get("v1/entry");
+
+		given().
+			contentType("application/json").
+			body("{\"ids\": [" + second + "]}").
+		expect().
+			statusCode(200).
+			body(second + ".entry.id", equalTo((int)second)).
+			body(second + ".taxonomy", nullValue()).
+		when().
+			post("v1/entry/fetch");
+
+		given().param("ids", "1,x").expect().statusCode(400).when().get("v1/entry");
+	}
+
+	/**
+	 * Cached collection responses are replaced as soon as an entry is added
+	 * or removed.
+	 */
+	@Test
+	public void testCachedReads() {
+		final String stats = basePath + "/stats";
+		int before = get(stats).andReturn().jsonPath().getInt("entries");
+		expect().statusCode(200).body("entries", equalTo(before)).when().get(stats);
+
+		long id = submitEntry(userSession, collectionId);
+		expect().statusCode(200).body("entries", equalTo(before + 1)).when().get(stats);
+		expect().statusCode(200).body("nodes.id", hasItem((int)id)).when().get(basePath + "/graph");
+
+		given().
+			filter(userSession).
+			param("entryId", id).
+		expect().statusCode(200).when().post(basePath + "/removeEntry");
+
+		expect().statusCode(200).body("entries", equalTo(before)).when().get(stats);
+		expect().statusCode(200).body("id", not(hasItem((int)id))).
+			when().get(basePath + "/entries");
+	}
+
+	@Test
+	public void testStatsCounters() {
+		final String stats = basePath + "/stats";
+		expect().statusCode(200).
+			body("members", equalTo(1)).
+			body("entries", equalTo(0)).
+		when().get(stats);
+
+		String user2 = getRandomString();
+		SessionFilter sf2 = new SessionFilter();
+		setupUser(sf2, user2, "1");
+
+		app.useMailClient(new Mailbox());
+		given().param("email", user2).filter(userSession).
+		expect().statusCode(200).when().post(basePath + "/invite");
+		given().filter(sf2).expect().statusCode(200).when().post(basePath + "/accept");
+		expect().statusCode(200).body("members", equalTo(2)).when().get(stats);
+
+		given().param("email", user2).filter(userSession).
+		expect().statusCode(200).when().post(basePath + "/kick");
+		expect().statusCode(200).body("members", equalTo(1)).when().get(stats);
+	}
+
+	@Test
+	public void testReclassify() {
+		long first = submitEntry(userSession, collectionId);
+		long second = submitEntry(userSession, collectionId);
+		List<Integer> facets = given().filter(userSession).
+			get(basePath + "/entities").andReturn().jsonPath().getList("id");
+
+		given().
+			contentType("application/json").
+			filter(userSession).
+			body("{\"oldFacetId\": \"IMPROVING\", \"newFacetId\": \"SCOPE\", " +
+				"\"entities\": [" + facets.get(0) + "]}").
+		expect().statusCode(200).when().post(basePath + "/reclassify");
+
+		int job = given().
+			contentType("application/json").
+			filter(userSession).
+			queryParam("async", true).
+			body("{\"oldFacetId\": \"IMPROVING\", \"newFacetId\": \"SCOPE\", " +
+				"\"entities\": " + facets + "}").
+		expect().statusCode(202).when().post(basePath + "/reclassify").
+		andReturn().jsonPath().getInt("id");
+
+		String state = "queued";
+		for (int i = 0; i < 50 && !state.equals("done"); i++) {
+			try { Thread.sleep(100); } catch (InterruptedException e) {}
+			state = given().filter(userSession).
+				get(basePath + "/jobs/" + job).andReturn().jsonPath().getString("state");
+		}
+		assertTrue(state.equals("done"));
+
+		for (long id : new long[]{first, second}) {
+			expect().
+				statusCode(200).
+				body("SCOPE.size()", equalTo(1)).
+				body("IMPROVING", nullValue()).
+			when().get("v1/entry/" + id + "/taxonomy");
+		}
+
+		given().filter(userSession).expect().statusCode(404).when().get(basePath + "/jobs/" + (job + 1000));
+	}
+
+	@Test
+	public void testBulkInvite() {
+		String user2 = getRandomString();
+		SessionFilter sf2 = new SessionFilter();
+		setupUser(sf2, user2, "1");
+
+		Mailbox mailbox = new Mailbox();
+		app.useMailClient(mailbox);
+		String new1 = getRandomString() + "@a.b", new2 = getRandomString() + "@a.b";
+		given().
+			filter(userSession).
+			param("email", user2, new1, new2, user2).
+		expect().statusCode(200).when().post(basePath + "/invite");
+
+		// One invitation per unique email, sent in the background
+		assertTrue(mailbox.await(3, 5000));
+		assertThat(mailbox.recipients(), containsInAnyOrder(user2, new1, new2));
+
+		// Unknown emails get placeholder accounts that can't log in
+		for (String placeholder : new String[] { new1, new2 }) {
+			AccountSystem.Account account = AccountSystem.findByEmail(placeholder);
+			assertTrue(account != null && account.password == null);
+			given().param("email", placeholder).param("passw", "").
+			expect().statusCode(400).when().post("/v1/account/login");
+			given().param("email", placeholder).param("passw", "1").
+			expect().statusCode(400).when().post("/v1/account/login");
+		}
+
+		given().filter(sf2).expect().statusCode(200).when().post(basePath + "/accept");
+
+		// Members are not invited again
+		given().filter(userSession).param("email", user2).
+		expect().statusCode(200).when().post(basePath + "/invite");
+		given().filter(sf2).expect().statusCode(400).when().post(basePath + "/accept");
+	}
+
+	@Test
+	public void testCopyEntries() {
+		long first = submitEntry(userSession, collectionId);
+		long second = submitEntry(userSession, collectionId);
+		long other = setupCollection(userSession, getRandomString());
+		final String otherPath = "/v1/collection/" + other;
+
+		given().
+			contentType("application/json").
+			filter(userSession).
+			body("{\"entries\": [" + first + ", " + second + ", -1]}").
+		expect().
+			statusCode(200).
+			body("source", contains((int)first, (int)second)).
+		when().post(otherPath + "/addEntries");
+
+		given().filter(userSession).param("entryId", first).
+		expect().statusCode(200).when().post(otherPath + "/addEntry");
+		given().filter(userSession).param("entryId", -1).
+		expect().statusCode(404).when().post(otherPath + "/addEntry");
+
+		expect().statusCode(200).body("entries", equalTo(3)).when().get(otherPath + "/stats");
+	}
+
+	@Test
+	public void testExport() {
+		long first = submitEntry(userSession, collectionId);
+		long second = submitEntry(userSession, collectionId);
+		final String path = "/v1/collection/" + collectionId + "/export";
+
+		String ndjson = expect().statusCode(200).when().get(path).asString();
+		String[] lines = ndjson.trim().split("\n");
+		assertTrue("One line per entry", lines.length == 2);
+		assertTrue("Ordered by id", lines[0].startsWith("{\"id\":" + first) &&
+			lines[1].startsWith("{\"id\":" + second));
+		assertTrue("Classification is included", lines[0].contains("\"IMPROVING\":["));
+
+		String csv = given().param("format", "csv").
+			expect().statusCode(200).when().get(path).asString();
+		assertTrue("Header and one row per entry", csv.trim().split("\r\n").length == 3);
+		assertTrue(csv.startsWith("id,type,hash,"));
+
+		given().param("format", "xml").expect().statusCode(400).when().get(path);
+	}
+
+	@Test
+	public void testClassified() {
+		final String path = "/v1/collection/" + collectionId;
+		expect().statusCode(400).when().get(path + "/classified");
+		given().param("facet", "no-such-facet").
+		expect().statusCode(404).when().get(path + "/classified");
+
+		// The extension adds TESTING below IMPROVING
+		putTaxonomy(path + "/taxonomy", userSession,
+			new String[][] {{"IMPROVING", "root"}, {"TESTING", "IMPROVING"}});
+
+		long id = submitEntry(userSession, collectionId, "{ \"entryType\": \"challenge\", " +
+			"\"description\": \"" + getRandomString() + "\", " +
+			"\"serpClassification\": { \"testing\": [\"unit\"] }, " +
+			"\"collection\": " + collectionId + ", " +
+			"\"project\": \"" + project + "\" }");
+		long other = submitEntry(userSession, collectionId);
+
+		given().param("facet", "improving").
+		expect().
+			statusCode(200).
+			body("id", hasItem((int) id)).
+			body("id", hasItem((int) other)).
+		when().get(path + "/classified");
+		given().param("facet", "testing").
+		expect().
+			statusCode(200).
+			body("id", hasItem((int) id)).
+			body("id", not(hasItem((int) other))).
+		when().get(path + "/classified");
+	}
+
+	@Test
+	public void testImport() {
+		final String path = "/v1/collection/" + collectionId;
+		putTaxonomy(path + "/taxonomy", userSession, new String[][] {{"IMPROVING", "root"}});
+
+		String ndjson =
+			"{\"type\": \"challenge\", \"description\": \"" + getRandomString() + "\", " +
+				"\"classification\": {\"IMPROVING\": [\"testing\"]}}\n" +
+			"{\"type\": \"research\", \"reference\": \"" + getRandomString() + "\"}\n" +
+			"{\"type\": \"challenge\", \"description\": \"x\", " +
+				"\"classification\": {\"UNKNOWN\": [\"y\"]}}\n" +
+			"{\"description\": \"no type\"}\n";
+		given().filter(userSession).contentType("application/x-ndjson").body(ndjson).
+		expect().
+			statusCode(200).
+			body("rows", equalTo(4)).
+			body("created", equalTo(2)).
+			body("failed", equalTo(2)).
+			body("errors.row", contains(3, 4)).
+		when().post(path + "/import");
+
+		String csv = "type,description,reference,IMPROVING\r\n" +
+			"challenge,\"" + getRandomString() + ", quoted\",,testing; planning\r\n";
+		given().filter(userSession).contentType("text/csv").body(csv).
+		expect().
+			statusCode(200).
+			body("created", equalTo(1)).
+			body("failed", equalTo(0)).
+		when().post(path + "/import");
+
+		// A row repeated within a batch is only created once
+		String row = "{\"type\": \"challenge\", \"description\": \"" + getRandomString() + "\"}\n";
+		given().filter(userSession).contentType("application/x-ndjson").body(row + row).
+			queryParam("onDuplicate", "link").
+		expect().
+			statusCode(200).
+			body("created", equalTo(1)).
+			body("linked", equalTo(1)).
+		when().post(path + "/import");
+
+		// Escaped separators survive the round trip through csv
+		csv = "type,description,IMPROVING\r\n" +
+			"challenge," + getRandomString() + ",a\\;b; c\r\n";
+		given().filter(userSession).contentType("text/csv").body(csv).
+		expect().statusCode(200).body("created", equalTo(1)).
+		when().post(path + "/import");
+		String export = given().param("format", "csv").get(path + "/export").asString();
+		assertTrue(export.contains("a\\;b; c"));
+
+		expect().statusCode(200).body("entries", equalTo(5)).when().get(path + "/stats");
+	}
+
+	@Test
+	public void testFork() {
+		// Accepted, so that the sources could be duplicates of their copies
+		verify(email);
+		long first = submitEntry(userSession, collectionId);
+		long second = submitEntry(userSession, collectionId);
+		final String path = "/v1/collection/" + collectionId;
+
+		int copy = given().filter(userSession).
+			expect().statusCode(200).body("entries", equalTo(2)).
+			when().post(path + "/fork").andReturn().jsonPath().getInt("id");
+		expect().statusCode(200).body("entries", equalTo(2)).
+			when().get("/v1/collection/" + copy + "/stats");
+
+		// Copies are new entries with the same hash
+		given().param("with", copy).
+		expect().
+			statusCode(200).
+			body("shared.size()", equalTo(0)).
+			body("equivalent.size()", equalTo(2)).
+		when().get(path + "/overlap");
+
+		// Copies are never merged back into their sources
+		given().filter(login(adminEmail, adminPassw)).
+		expect().statusCode(200).when().post("/v1/admin/merge-duplicates");
+		expect().statusCode(200).body("entries", equalTo(2)).
+			when().get("/v1/collection/" + copy + "/stats");
+		given().param("with", copy).
+		expect().
+			statusCode(200).
+			body("equivalent.size()", equalTo(2)).
+		when().get(path + "/overlap");
+
+		JsonPath fork = given().filter(userSession).param("entries", "link").param("async", true).
+			expect().statusCode(202).when().post(path + "/fork").andReturn().jsonPath();
+		int linked = fork.getInt("id");
+		int job = fork.getInt("job.id");
+
+		String state = "queued";
+		for (int i = 0; i < 50 && !state.equals("done"); i++) {
+			try { Thread.sleep(100); } catch (InterruptedException e) {}
+			state = given().filter(userSession).
+				get(path + "/jobs/" + job).andReturn().jsonPath().getString("state");
+		}
+		assertTrue(state.equals("done"));
+
+		// Linked forks contain the source's entries themselves
+		expect().statusCode(200).body("entries", equalTo(2)).
+			when().get("/v1/collection/" + linked + "/stats");
+		given().param("with", linked).
+		expect().
+			statusCode(200).
+			body("shared", contains((int)first, (int)second)).
+			body("onlyInOther.size()", equalTo(0)).
+		when().get(path + "/overlap");
+
+		given().filter(userSession).param("entries", "move").
+		expect().statusCode(400).when().post(path + "/fork");
+	}
+
+	@Test
+	public void testOverlapAndMerge() {
+		final String path = "/v1/collection/" + collectionId;
+		long shared = submitEntry(userSession, collectionId);
+		int other = given().filter(userSession).param("entries", "link").
+			expect().statusCode(200).when().post(path + "/fork").andReturn().jsonPath().getInt("id");
+		final String otherPath = "/v1/collection/" + other;
+
+		// addEntry copies, so the copy is equivalent but not shared
+		long copied = submitEntry(userSession, collectionId);
+		given().filter(userSession).param("entryId", copied).
+		expect().statusCode(200).when().post(otherPath + "/addEntry");
+		long only = submitEntry(userSession, collectionId);
+
+		given().param("with", other).
+		expect().
+			statusCode(200).
+			body("shared", contains((int)shared)).
+			body("equivalent.id", contains((int)copied)).
+			body("onlyHere", contains((int)only)).
+			body("onlyInOther.size()", equalTo(0)).
+		when().get(path + "/overlap");
+
+		given().filter(userSession).param("from", collectionId).
+		expect().
+			statusCode(200).
+			body("added", equalTo(1)).
+		when().post(otherPath + "/merge");
+
+		given().param("with", other).
+		expect().
+			statusCode(200).
+			body("onlyHere.size()", equalTo(0)).
+			body("equivalent.size()", equalTo(2)).
+		when().get(path + "/overlap");
+
+		given().param("with", -1).expect().statusCode(400).when().get(path + "/overlap");
+	}
+
+	private static Object from(List<Object> results, int i) {
+		return ((java.util.Map<?,?>)results.get(i)).get("id");
+	}
 }
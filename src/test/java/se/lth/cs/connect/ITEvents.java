@@ -5,8 +5,22 @@ import com.jayway.restassured.filter.session.SessionFilter;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Collections;
+
+import iot.jcypher.database.IDBAccess;
+import iot.jcypher.query.values.JcNumber;
+import se.lth.cs.connect.events.Cascade;
+import se.lth.cs.connect.events.DeleteAccountEvent;
+import se.lth.cs.connect.events.DeleteCollectionEvent;
+import se.lth.cs.connect.events.DeleteEntryEvent;
 import se.lth.cs.connect.events.DetachEntryEvent;
+import se.lth.cs.connect.events.EventQueue;
 import se.lth.cs.connect.events.LeaveCollectionEvent;
+import se.lth.cs.connect.modules.Database;
+import se.lth.cs.connect.modules.Jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class ITEvents extends APITest {
@@ -63,4 +77,72 @@ public class ITEvents extends APITest {
         expect().statusCode(400).when().get("/v1/entry/" + entryID);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void deleteEntryRemovesOnlyItsOrphanFacets() {
+        String shared = APITest.getRandomString();
+        String unique = APITest.getRandomString();
+        String json = "{ \"entryType\": \"challenge\", " +
+            "\"description\": \"%s\", " +
+            "\"serpClassification\": { \"improving\": [%s] }, " +
+            "\"collection\": " + collectionId +
+        " }";
+
+        long deleted = submitEntry(userSession, collectionId, String.format(json,
+            APITest.getRandomString(), "\"" + shared + "\", \"" + unique + "\""));
+        submitEntry(userSession, collectionId, String.format(json,
+            APITest.getRandomString(), "\"" + shared + "\""));
+
+        new DeleteEntryEvent(deleted).execute();
+
+        assertEquals(1, facets(shared));
+        assertEquals(0, facets(unique));
+    }
+
+    @Test
+    public void accountCascadeIsReportedBeforeItRuns() {
+        long entryId = submitEntry(userSession, collectionId);
+
+        DeleteAccountEvent event = new DeleteAccountEvent(email);
+        Cascade.Impact impact = event.impact();
+        assertTrue(impact.deletedCollections.contains(collectionId));
+        assertEquals(1, impact.deletedEntries);
+        assertEquals(0, impact.detachedEntries);
+
+        // Reporting must not delete anything
+        expect().statusCode(200).when().get(basePath + "/stats");
+
+        event.execute();
+        expect().statusCode(400).when().get(basePath + "/stats");
+        expect().statusCode(400).when().get("/v1/entry/" + entryId);
+    }
+
+    @Test
+    public void queuedEventsAreJournaled() throws InterruptedException {
+        long entryId = submitEntry(userSession, collectionId);
+
+        EventQueue.Job job = EventQueue.submit(new DeleteCollectionEvent(collectionId));
+        assertEquals(DeleteCollectionEvent.KIND, job.kind);
+        assertEquals(Long.toString(collectionId), job.argument);
+
+        for (int i = 0; i < 100 && !Jobs.DONE.equals(job.state); i++) {
+            Thread.sleep(100);
+            job = EventQueue.get(job.id);
+        }
+        assertEquals(Jobs.DONE, job.state);
+        assertEquals(1, job.attempts);
+
+        expect().statusCode(400).when().get(basePath + "/stats");
+        expect().statusCode(400).when().get("/v1/entry/" + entryId);
+    }
+
+    private static long facets(String text) {
+        IDBAccess db = Database.access();
+        try {
+            return Database.execute(db, Collections.singletonList(
+                new Database.Statement("MATCH (f:facet {text: {text}}) RETURN count(f) AS n")
+                    .param("text", text))).get(0).resultOf(new JcNumber("n")).get(0).longValue();
+        } finally {
+            db.close();
+        }
+    }
+}
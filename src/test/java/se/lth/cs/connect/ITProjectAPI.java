@@ -5,6 +5,11 @@ import com.jayway.restassured.filter.session.SessionFilter;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertTrue;
+
 import se.lth.cs.connect.modules.AccountSystem;
 import se.lth.cs.connect.modules.TaxonomyDB;
 
@@ -16,15 +21,7 @@ public class ITProjectAPI extends APITest {
 	public void setUp() {
         super.setUp();
 
-    	adminSession = new SessionFilter();
-		given().
-			filter(adminSession).
-			param("email", adminEmail).
-			param("passw", adminPassw).
-		expect().
-			statusCode(200).
-		when().
-			post("/v1/account/login");
+		adminSession = login(adminEmail, adminPassw);
 	}
 
     @Test
@@ -80,6 +77,235 @@ public class ITProjectAPI extends APITest {
 		expect().statusCode(200).when().put(url);
 	}
 
+	@Test
+	public void testCompressedTaxonomy() {
+		final String url = "v1/project/" + project + "/taxonomy";
+
+		// Creating the project also stores a precompressed copy
+		given().
+			header("Accept-Encoding", "gzip").
+		expect().
+			statusCode(200).
+			header("Content-Encoding", "gzip").
+			contentType("application/json").
+		when().get(url);
+
+		given().
+			header("Accept-Encoding", "identity").
+		expect().
+			statusCode(200).
+			header("Content-Encoding", nullValue()).
+		when().get(url);
+	}
+
+	@Test
+	public void testClassified() {
+		final String url = "v1/project/" + project + "/classified";
+
+		expect().statusCode(400).when().get(url);
+		given().param("facet", "no-such-facet").
+		expect().statusCode(404).when().get(url);
+
+		// TESTING is a child of IMPROVING
+		final String path = "v1/project/" + project + "/taxonomy";
+		putTaxonomy(path, adminSession, new String[][] {{"IMPROVING", null}, {"TESTING", "IMPROVING"}});
+
+		// Entries by unverified users are pending and not listed
+		verify(email);
+
+		long id = submitEntry(userSession, collectionId, "{ \"entryType\": \"challenge\", " +
+			"\"description\": \"" + getRandomString() + "\", " +
+			"\"serpClassification\": { \"testing\": [\"unit\"] }, " +
+			"\"collection\": " + collectionId + ", " +
+			"\"project\": \"" + project + "\" }");
+
+		given().param("facet", "improving").
+		expect().
+			statusCode(200).
+			body("id", hasItem((int) id)).
+		when().get(url);
+		given().param("facet", "testing").
+		expect().
+			statusCode(200).
+			body("id", hasItem((int) id)).
+		when().get(url);
+	}
+
+	@Test
+	public void testEntryPages() {
+		// Entries by unverified users are pending and not listed
+		verify(email);
+
+		submitEntry(userSession, collectionId);
+		submitEntry(userSession, collectionId);
+
+		int count = given().param("project", project).
+			get("v1/entry/count").andReturn().jsonPath().getInt("count");
+		assertTrue(count >= 2);
+
+		String next = given().
+			param("project", project).
+			param("limit", 1).
+			param("fields", "hash").
+		expect().
+			statusCode(200).
+			body("nodes.size()", equalTo(1)).
+			body("nodes[0].description", nullValue()).
+		when().get("v1/entry").andReturn().jsonPath().getString("next");
+
+		given().
+			param("project", project).
+			param("limit", count).
+			param("after", next).
+		expect().
+			statusCode(200).
+			body("nodes.size()", equalTo(count - 1)).
+			body("next", nullValue()).
+		when().get("v1/entry");
+
+		// Without paging parameters the first page has everything here
+		given().
+			param("project", project).
+		expect().
+			statusCode(200).
+			body("nodes.size()", equalTo(count)).
+			body("next", nullValue()).
+		when().get("v1/entry");
+
+		given().param("project", project).param("limit", 0).
+		expect().statusCode(400).when().get("v1/entry");
+	}
+
+	@Test
+	public void testFilter() {
+		verify(email);
+
+		putTaxonomy("v1/project/" + project + "/taxonomy", adminSession,
+			new String[][] {{"EFFECT", "root"}, {"IMPROVING", "EFFECT"}, {"SCOPE", "root"}});
+
+		// Classified as IMPROVING, which is below EFFECT
+		long id = submitEntry(userSession, collectionId);
+
+		final String url = "v1/entry/filter";
+		given().param("project", project).param("q", "effect").param("nodes", true).
+		expect().
+			statusCode(200).
+			body("total", equalTo(1)).
+			body("ids[0]", equalTo((int)id)).
+			body("nodes[0].id", equalTo((int)id)).
+		when().get(url);
+
+		given().param("project", project).param("q", "EFFECT AND SCOPE").
+		expect().statusCode(200).body("total", equalTo(0)).when().get(url);
+
+		given().param("project", project).param("q", "NOT SCOPE OR (SCOPE)").
+		expect().statusCode(200).body("total", equalTo(1)).when().get(url);
+
+		given().param("project", project).param("q", "EFFECT AND").
+		expect().statusCode(400).when().get(url);
+
+		given().param("project", project).param("q", "NO-SUCH-FACET").
+		expect().statusCode(404).when().get(url);
+
+		// Facet values: IMPROVING=unit testing, below EFFECT
+		long unit = submitEntry(userSession, collectionId, "{ \"entryType\": \"challenge\", " +
+			"\"description\": \"" + getRandomString() + "\", " +
+			"\"serpClassification\": { \"improving\": [\"unit testing\"] }, " +
+			"\"collection\": " + collectionId + ", " +
+			"\"project\": \"" + project + "\" }");
+
+		given().param("project", project).param("q", "EFFECT=\"unit testing\"").
+		expect().
+			statusCode(200).
+			body("total", equalTo(1)).
+			body("ids[0]", equalTo((int)unit)).
+		when().get(url);
+
+		given().param("project", project).param("q", "EFFECT AND NOT IMPROVING=\"unit testing\"").
+		expect().
+			statusCode(200).
+			body("total", equalTo(1)).
+			body("ids[0]", equalTo((int)id)).
+		when().get(url);
+
+		given().param("project", project).param("q", "SCOPE=\"unit testing\"").
+		expect().statusCode(200).body("total", equalTo(0)).when().get(url);
+
+		given().param("project", project).param("q", "EFFECT=").
+		expect().statusCode(400).when().get(url);
+	}
+
+	@Test
+	public void testRelated() {
+		verify(email);
+
+		String shared = APITest.getRandomString();
+		long[] ids = new long[3];
+		String[] facets = {shared, shared, APITest.getRandomString()};
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = submitEntry(userSession, collectionId,
+				"{ \"entryType\": \"challenge\", " +
+				"\"description\": \"related " + APITest.getRandomString() + "\", " +
+				"\"serpClassification\": { \"improving\": [\"" + facets[i] + "\"] }, " +
+				"\"collection\": " + collectionId + ", " +
+				"\"project\": \"" + project + "\" }");
+		}
+
+		// Same facet in another project, which must not be recommended
+		String other = APITest.getRandomString();
+		setupProject(adminEmail, adminPassw, other, "http://serpconnect.cs.lth.se");
+		long otherCollection = Long.parseLong(given().
+			filter(userSession).
+			param("project", other).
+			param("name", APITest.getRandomString()).
+		expect().statusCode(200).when().post("/v1/collection/").
+		andReturn().jsonPath().getString("id"));
+		submitEntry(userSession, otherCollection,
+			"{ \"entryType\": \"challenge\", " +
+			"\"description\": \"related " + APITest.getRandomString() + "\", " +
+			"\"serpClassification\": { \"improving\": [\"" + shared + "\"] }, " +
+			"\"collection\": " + otherCollection + ", " +
+			"\"project\": \"" + other + "\" }");
+
+		given().filter(adminSession).expect().statusCode(200).when().post("v1/admin/update-related");
+
+		given().
+		expect().
+			statusCode(200).
+			body("related.size()", equalTo(1)).
+			body("related[0].id", equalTo((int)ids[1])).
+			body("nodes[0].id", equalTo((int)ids[1])).
+		when().get("v1/entry/" + ids[0] + "/related");
+	}
+
+	@Test
+	public void testSearch() {
+		verify(email);
+
+		String word = APITest.getRandomString();
+		long id = submitEntry(userSession, collectionId,
+			"{ \"entryType\": \"challenge\", " +
+			"\"description\": \"search " + word + "\", " +
+			"\"serpClassification\": { \"improving\": [\"testing\"] }, " +
+			"\"collection\": " + collectionId + ", " +
+			"\"project\": \"" + project + "\" }");
+
+		given().
+			param("project", project).
+			param("q", word).
+		expect().
+			statusCode(200).
+			body("total", equalTo(1)).
+			body("nodes[0].id", equalTo((int)id)).
+		when().get("v1/search");
+
+		given().param("project", project).
+		expect().statusCode(400).when().get("v1/search");
+
+		given().param("project", "shiftyproject").param("q", word).
+		expect().statusCode(404).when().get("v1/search");
+	}
+
 	@Test
 	public void testRename() {
 		given().
@@ -1,6 +1,7 @@
 package se.lth.cs.connect;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import ro.pippo.core.PippoSettings;
@@ -14,7 +15,8 @@ public class Mailbox extends MailClient {
 	private List<Mail> inbox;
 
 	public Mailbox() {
-		inbox = new ArrayList<Mail>();
+		// Mail sent with sendLater arrives on another thread
+		inbox = Collections.synchronizedList(new ArrayList<Mail>());
 	}
 
 	public static class Mail {
@@ -40,6 +42,34 @@ public class Mailbox extends MailClient {
 	
 	
 	public Mail top() { return inbox.get(inbox.size() - 1); }
+
+	/**
+	 * Wait until at least count mails have arrived.
+	 * @return false if they didn't within millis
+	 */
+	public boolean await(int count, long millis) {
+		final long deadline = System.currentTimeMillis() + millis;
+		while (inbox.size() < count) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public List<String> recipients() {
+		synchronized (inbox) {
+			final List<String> to = new ArrayList<String>();
+			for (Mail mail : inbox)
+				to.add(mail.recipient);
+			return to;
+		}
+	}
 	
 	
 	@Override